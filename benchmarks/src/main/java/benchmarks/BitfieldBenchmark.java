@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// BITFIELD payloads: turning our pieces into the wire format when a connection opens, and a received one back
+// into a BitSet. Half of the pieces are set, scattered, the same ones in every run.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitfieldBenchmark {
+    @Param({"10", "1000", "100000", "1000000"})
+    public int numPieces;
+
+    private BitSet bitfield;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws Throwable {
+        bitfield = Swarm.randomPieces(numPieces, 0.5, new SplittableRandom(1));
+        payload = (byte[]) PeerCode.BITFIELD_TO_BYTE_ARRAY.invokeExact(bitfield, numPieces);
+    }
+
+    @Benchmark
+    public byte[] toByteArray() throws Throwable {
+        return (byte[]) PeerCode.BITFIELD_TO_BYTE_ARRAY.invokeExact(bitfield, numPieces);
+    }
+
+    @Benchmark
+    public BitSet fromByteArray() throws Throwable {
+        return (BitSet) PeerCode.FROM_BYTE_ARRAY.invokeExact(payload, numPieces);
+    }
+}
@@ -0,0 +1,76 @@
+package benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Encoding and decoding a PIECE frame, the message every transferred byte goes through.
+// getBytes is the copying encoder, encodeTo is what the pooled write path does into a reused buffer.
+// decode is the receive path (the payload stays a view into the read buffer), decodeAndCopy is decode plus the
+// copy a handler pays when it needs the payload as an array.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"16384", "262144", "1048576", "8388608"})
+    public int pieceSize;
+
+    private Object message;
+    private ByteBuffer encodeBuffer;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setup() throws Throwable {
+        byte[] content = new byte[pieceSize];
+        ThreadLocalRandom.current().nextBytes(content);
+        message = (Object) PeerCode.CREATE_PIECE_MESSAGE.invokeExact(17, content);
+        encodeBuffer = ByteBuffer.allocateDirect((int) PeerCode.GET_ENCODED_LENGTH.invokeExact(message));
+        frame = ByteBuffer.wrap((byte[]) PeerCode.GET_BYTES.invokeExact(message));
+    }
+
+    @Benchmark
+    public byte[] getBytes() throws Throwable {
+        return (byte[]) PeerCode.GET_BYTES.invokeExact(message);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeTo() throws Throwable {
+        encodeBuffer.clear();
+        PeerCode.ENCODE_TO.invokeExact(message, encodeBuffer);
+        return encodeBuffer;
+    }
+
+    @Benchmark
+    public ByteBuffer decode() throws Throwable {
+        frame.position(0);
+        // Same two steps as FrameReader: check the frame is complete, then decode it
+        int frameLength = (int) PeerCode.FRAME_LENGTH.invokeExact(frame, PeerCode.MAX_MESSAGE_LENGTH);
+        if (frame.remaining() < frameLength) {
+            throw new IllegalStateException("Incomplete frame");
+        }
+        Object decoded = (Object) PeerCode.DECODE.invokeExact(frame, PeerCode.MAX_MESSAGE_LENGTH);
+        return (ByteBuffer) PeerCode.GET_PAYLOAD_BUFFER.invokeExact(decoded);
+    }
+
+    @Benchmark
+    public byte[] decodeAndCopy() throws Throwable {
+        frame.position(0);
+        Object decoded = (Object) PeerCode.DECODE.invokeExact(frame, PeerCode.MAX_MESSAGE_LENGTH);
+        return (byte[]) PeerCode.GET_PAYLOAD.invokeExact(decoded);
+    }
+}
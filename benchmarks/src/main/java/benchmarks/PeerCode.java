@@ -0,0 +1,88 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+// The peer classes live in the default package, which named packages can't import, and JMH refuses benchmarks in
+// the default package. So the benchmarks call them through these handles. Peer types are erased to Object, and the
+// handles are static finals the JIT treats as constants, so invokeExact compiles down to a direct call.
+final class PeerCode {
+    static final int MAX_MESSAGE_LENGTH;
+
+    // Message
+    static final MethodHandle CREATE_PIECE_MESSAGE;   // (int pieceIndex, byte[] content) -> Message, single file addressing
+    static final MethodHandle GET_BYTES;              // (Message) -> byte[]
+    static final MethodHandle GET_ENCODED_LENGTH;     // (Message) -> int
+    static final MethodHandle ENCODE_TO;              // (Message, ByteBuffer) -> void
+    static final MethodHandle DECODE;                 // (ByteBuffer, int maxFrameLength) -> Message
+    static final MethodHandle FRAME_LENGTH;           // (ByteBuffer, int maxFrameLength) -> int
+    static final MethodHandle GET_PAYLOAD;            // (Message) -> byte[]
+    static final MethodHandle GET_PAYLOAD_BUFFER;     // (Message) -> ByteBuffer
+
+    // Bitfields
+    static final MethodHandle BITFIELD_TO_BYTE_ARRAY; // (BitSet, int numPieces) -> byte[]
+    static final MethodHandle FROM_BYTE_ARRAY;        // (byte[], int numPieces) -> BitSet
+
+    // PiecePicker
+    static final MethodHandle NEW_PIECE_PICKER;       // (int numPieces, String policy) -> PiecePicker
+    static final MethodHandle ADD_PEER_PIECES;        // (PiecePicker, int peerID, BitSet) -> void
+    static final MethodHandle MARK_HAVE;              // (PiecePicker, int pieceIndex) -> void
+    static final MethodHandle PICK_PIECE;             // (PiecePicker, int peerID, IntPredicate) -> int
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> message = Class.forName("Message");
+            Class<?> peerProcess = Class.forName("peerProcess");
+            Class<?> picker = Class.forName("PiecePicker");
+            Class<?> policy = Class.forName("PiecePicker$Policy");
+            Class<?> sharedFiles = Class.forName("SharedFiles");
+
+            MAX_MESSAGE_LENGTH = message.getField("MAX_MESSAGE_LENGTH").getInt(null);
+
+            // Without a FileList a piece address is just the index, the file's size doesn't change the encoding
+            Object singleFile = lookup.findStatic(sharedFiles, "single", MethodType.methodType(sharedFiles, String.class, long.class, int.class))
+                    .invoke("benchmark", 1L << 30, 16384);
+            MethodHandle createPieceMessage = lookup.findStatic(message, "createPieceMessage",
+                    MethodType.methodType(message, sharedFiles, int.class, byte[].class));
+            CREATE_PIECE_MESSAGE = MethodHandles.insertArguments(createPieceMessage, 0, singleFile)
+                    .asType(MethodType.methodType(Object.class, int.class, byte[].class));
+            GET_BYTES = lookup.findVirtual(message, "getBytes", MethodType.methodType(byte[].class))
+                    .asType(MethodType.methodType(byte[].class, Object.class));
+            GET_ENCODED_LENGTH = lookup.findVirtual(message, "getEncodedLength", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, Object.class));
+            ENCODE_TO = lookup.findVirtual(message, "encodeTo", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Object.class, ByteBuffer.class));
+            DECODE = lookup.findStatic(message, "decode", MethodType.methodType(message, ByteBuffer.class, int.class))
+                    .asType(MethodType.methodType(Object.class, ByteBuffer.class, int.class));
+            FRAME_LENGTH = lookup.findStatic(message, "frameLength", MethodType.methodType(int.class, ByteBuffer.class, int.class));
+            GET_PAYLOAD = lookup.findVirtual(message, "getPayload", MethodType.methodType(byte[].class))
+                    .asType(MethodType.methodType(byte[].class, Object.class));
+            GET_PAYLOAD_BUFFER = lookup.findVirtual(message, "getPayloadBuffer", MethodType.methodType(ByteBuffer.class))
+                    .asType(MethodType.methodType(ByteBuffer.class, Object.class));
+
+            BITFIELD_TO_BYTE_ARRAY = lookup.findStatic(message, "bitfieldToByteArray", MethodType.methodType(byte[].class, BitSet.class, int.class));
+            FROM_BYTE_ARRAY = lookup.findStatic(peerProcess, "fromByteArray", MethodType.methodType(BitSet.class, byte[].class, int.class));
+
+            MethodHandle fromConfig = lookup.findStatic(policy, "fromConfig", MethodType.methodType(policy, String.class));
+            MethodHandle constructor = lookup.findConstructor(picker, MethodType.methodType(void.class, int.class, policy));
+            NEW_PIECE_PICKER = MethodHandles.filterArguments(constructor, 1, fromConfig)
+                    .asType(MethodType.methodType(Object.class, int.class, String.class));
+            ADD_PEER_PIECES = lookup.findVirtual(picker, "addPeerPieces", MethodType.methodType(void.class, int.class, BitSet.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class, BitSet.class));
+            MARK_HAVE = lookup.findVirtual(picker, "markHave", MethodType.methodType(void.class, int.class))
+                    .asType(MethodType.methodType(void.class, Object.class, int.class));
+            PICK_PIECE = lookup.findVirtual(picker, "pickPiece", MethodType.methodType(int.class, int.class, IntPredicate.class))
+                    .asType(MethodType.methodType(int.class, Object.class, int.class, IntPredicate.class));
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private PeerCode() {
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// One piece choice for a neighbor, the call made for every REQUEST we send. The swarm is halfway through the
+// download: we have half of the pieces, and each of the neighbors has a random half, so availability is spread out.
+// pickPieceCommonOnly picks for one more neighbor that only has the pieces all the others have too, so none of the
+// rare ones: rarest-first has to get past every rarer bucket before it finds something.
+// Picking doesn't change the picker, every invocation sees the same state.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PiecePickerBenchmark {
+    private static final int NEIGHBORS = 8;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int numPieces;
+
+    @Param({"rarest", "random", "sequential"})
+    public String policy;
+
+    private static final int COMMON_NEIGHBOR = NEIGHBORS; // Peer ID of the neighbor without rare pieces
+
+    private Object picker;
+    private final IntPredicate requestable = pieceIndex -> true;
+
+    @Setup
+    public void setup() throws Throwable {
+        SplittableRandom random = new SplittableRandom(1);
+        picker = (Object) PeerCode.NEW_PIECE_PICKER.invokeExact(numPieces, policy);
+        BitSet common = new BitSet(numPieces);
+        common.set(0, numPieces);
+        for (int i = 0; i < NEIGHBORS; i++) {
+            BitSet pieces = Swarm.randomPieces(numPieces, 0.5, random);
+            PeerCode.ADD_PEER_PIECES.invokeExact(picker, i, pieces);
+            common.and(pieces);
+        }
+        PeerCode.ADD_PEER_PIECES.invokeExact(picker, COMMON_NEIGHBOR, common);
+        BitSet have = Swarm.randomPieces(numPieces, 0.5, random);
+        for (int i = have.nextSetBit(0); i >= 0; i = have.nextSetBit(i + 1)) {
+            PeerCode.MARK_HAVE.invokeExact(picker, i);
+        }
+    }
+
+    @Benchmark
+    public int pickPiece() throws Throwable {
+        return (int) PeerCode.PICK_PIECE.invokeExact(picker, NEIGHBORS - 1, requestable);
+    }
+
+    @Benchmark
+    public int pickPieceCommonOnly() throws Throwable {
+        return (int) PeerCode.PICK_PIECE.invokeExact(picker, COMMON_NEIGHBOR, requestable);
+    }
+}
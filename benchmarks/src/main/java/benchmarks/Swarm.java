@@ -0,0 +1,20 @@
+package benchmarks;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+// Piece sets for the benchmark fixtures
+final class Swarm {
+    private Swarm() {
+    }
+
+    static BitSet randomPieces(int numPieces, double fraction, SplittableRandom random) {
+        BitSet pieces = new BitSet(numPieces);
+        for (int i = 0; i < numPieces; i++) {
+            if (random.nextDouble() < fraction) {
+                pieces.set(i);
+            }
+        }
+        return pieces;
+    }
+}
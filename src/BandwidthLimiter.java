@@ -0,0 +1,86 @@
+// Rate limit for one direction (uploads or downloads): a bucket shared by all neighbors and, if configured,
+// one bucket per neighbor. A transfer has to get through both.
+// Uploads reserve their bytes and wait for them. Every writer has at most one upload waiting, and reservations are
+// served in order, so busy neighbors take equal turns on the shared bucket and an idle neighbor's share goes to the
+// others. The per-neighbor bucket caps how much of the idle capacity a single neighbor can borrow.
+public class BandwidthLimiter {
+    private static final int BURST_MILLIS = 100; // Buckets hold this much traffic at their rate, but at least one block
+
+    private final long globalRate; // Bytes per second, 0 = unlimited
+    private final long perNeighborRate;
+    private final int minBurst;
+    private final TokenBucket global;
+
+    public BandwidthLimiter(long globalRate, long perNeighborRate, int maxTransferLength) {
+        if (globalRate < 0 || perNeighborRate < 0) {
+            throw new IllegalArgumentException("Invalid bandwidth limit: " + globalRate + " bytes/s, " + perNeighborRate + " bytes/s per neighbor");
+        }
+        this.globalRate = globalRate;
+        this.perNeighborRate = perNeighborRate;
+        this.minBurst = maxTransferLength;
+        this.global = globalRate > 0 ? newBucket(globalRate) : null;
+    }
+
+    public boolean isLimited() {
+        return globalRate > 0 || perNeighborRate > 0;
+    }
+
+    public long getGlobalRate() {
+        return globalRate;
+    }
+
+    public long getPerNeighborRate() {
+        return perNeighborRate;
+    }
+
+    // The bucket a new neighbor gets, null without a per-neighbor limit
+    public TokenBucket newNeighborBucket() {
+        return perNeighborRate > 0 ? newBucket(perNeighborRate) : null;
+    }
+
+    // Upload path: takes the bytes from both buckets, returns the nanoseconds until they may be sent
+    public long reserve(TokenBucket neighborBucket, int bytes) {
+        long wait = 0;
+        if (neighborBucket != null) {
+            wait = neighborBucket.reserve(bytes);
+        }
+        if (global != null) {
+            wait = Math.max(wait, global.reserve(bytes));
+        }
+        return wait;
+    }
+
+    // Request path: takes the bytes only if both buckets have them. Returns 0 if they did, otherwise the nanoseconds to try again after.
+    public long tryAcquire(TokenBucket neighborBucket, int bytes) {
+        if (neighborBucket != null) {
+            long wait = neighborBucket.tryAcquire(bytes);
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        if (global != null) {
+            long wait = global.tryAcquire(bytes);
+            if (wait > 0) {
+                if (neighborBucket != null) {
+                    neighborBucket.refund(bytes);
+                }
+                return wait;
+            }
+        }
+        return 0;
+    }
+
+    // Gives back bytes that tryAcquire granted but that weren't used
+    public void refund(TokenBucket neighborBucket, int bytes) {
+        if (neighborBucket != null) {
+            neighborBucket.refund(bytes);
+        }
+        if (global != null) {
+            global.refund(bytes);
+        }
+    }
+
+    private TokenBucket newBucket(long rate) {
+        return new TokenBucket(rate, Math.max(rate * BURST_MILLIS / 1000, minBurst));
+    }
+}
@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// Reusable ByteBuffers for encoding outgoing control frames and for the per-connection read buffers.
+// Buffers come in power of two size classes starting at 64 bytes. Every class keeps a bounded number of free
+// buffers, anything released beyond that is left to the GC. Direct buffers can be handed to the socket
+// without the JDK copying them into a temporary direct buffer first.
+public class BufferPool {
+    private static final int MIN_SHIFT = 6; // 64 bytes
+    private static final int MAX_SHIFT = 26; // 64 MiB, the largest frame NioConnection accepts
+    private static final int SMALL_CLASS_LIMIT = 4096; // Control frames, many of them are in flight at once
+
+    private final boolean direct;
+    private final List<ArrayBlockingQueue<ByteBuffer>> freeBuffers; // One per size class
+
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+        this.freeBuffers = new ArrayList<>(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int shift = MIN_SHIFT; shift <= MAX_SHIFT; shift++) {
+            int capacity = 1 << shift;
+            freeBuffers.add(new ArrayBlockingQueue<>(capacity <= SMALL_CLASS_LIMIT ? 1024 : 16));
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    // A cleared buffer with at least minCapacity bytes. The limit is set to minCapacity.
+    public ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClassOf(minCapacity);
+        if (sizeClass >= freeBuffers.size()) {
+            return allocate(minCapacity); // Too big to pool
+        }
+        ByteBuffer buffer = freeBuffers.get(sizeClass).poll();
+        if (buffer == null) {
+            buffer = allocate(1 << (MIN_SHIFT + sizeClass));
+        }
+        buffer.clear().limit(minCapacity);
+        return buffer;
+    }
+
+    // Buffers that didn't come from acquire are ignored
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || Integer.bitCount(capacity) != 1 || buffer.isReadOnly()) {
+            return;
+        }
+        int sizeClass = sizeClassOf(capacity);
+        if (sizeClass < freeBuffers.size() && capacity == 1 << (MIN_SHIFT + sizeClass)) {
+            freeBuffers.get(sizeClass).offer(buffer);
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int sizeClassOf(int capacity) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity - 1));
+        return Math.max(0, shift - MIN_SHIFT);
+    }
+}
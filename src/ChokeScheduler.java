@@ -0,0 +1,144 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Decides which neighbors are unchoked. Every UnchokingInterval the preferred neighbors are picked again: the k
+// interested neighbors with the highest rate, found in one pass with a min-heap of size k, so a round costs
+// O(n log k) for n neighbors. Leechers rank by what a neighbor sent us (tit-for-tat), peers with the whole file by
+// what we managed to send it, so upload slots go to the neighbors that take the data fastest.
+// On top of that one optimistic slot moves to a random other interested neighbor every OptimisticUnchokingInterval,
+// the previous pick is choked again unless it made it into the preferred set meanwhile.
+// No more than maxUnchoked neighbors are ever unchoked at once, the optimistic slot only exists below that cap.
+public class ChokeScheduler {
+    private final int preferredSlots;
+    private final int maxUnchoked;
+    private Set<Neighbor> preferred = Collections.emptySet();
+    private Neighbor optimistic;
+
+    public ChokeScheduler(int numPreferredNeighbors, int maxUnchoked) {
+        if (numPreferredNeighbors < 0 || maxUnchoked < 1) {
+            throw new IllegalArgumentException("Invalid unchoke slots: " + numPreferredNeighbors + " preferred, at most " + maxUnchoked + " unchoked");
+        }
+        this.preferredSlots = Math.min(numPreferredNeighbors, maxUnchoked);
+        this.maxUnchoked = maxUnchoked;
+    }
+
+    // Ranks the interested neighbors and returns everybody who should be unchoked until the next call
+    public synchronized Set<Neighbor> selectPreferred(Collection<Neighbor> neighbors, boolean seeding) {
+        // Rates tie all the time (nobody has sent anything yet, or everybody is choked). Ties are broken by a hash
+        // of the peer ID that changes every round, so equally ranked neighbors take turns instead of the same ones winning.
+        long salt = ThreadLocalRandom.current().nextLong();
+        PriorityQueue<Ranked> heap = new PriorityQueue<>(preferredSlots + 1); // Lowest ranked on top
+
+        for (Neighbor neighbor : neighbors) {
+            if (preferredSlots == 0 || !neighbor.isInterested()) {
+                continue;
+            }
+            double rate = seeding ? neighbor.getUploadRate() : neighbor.getDownloadRate();
+            long tieBreak = mix(neighbor.getPeerID() ^ salt);
+            if (heap.size() < preferredSlots) {
+                heap.add(new Ranked(neighbor, rate, tieBreak));
+            } else if (heap.peek().isBelow(rate, tieBreak)) {
+                heap.poll();
+                heap.add(new Ranked(neighbor, rate, tieBreak));
+            }
+        }
+
+        Set<Neighbor> selected = new HashSet<>();
+        for (Ranked ranked : heap) {
+            selected.add(ranked.neighbor);
+        }
+        preferred = selected;
+        if (optimistic != null && (!optimistic.isInterested() || preferred.contains(optimistic) || !hasOptimisticSlot())) {
+            optimistic = null;
+        }
+        return unchokedSet();
+    }
+
+    // Moves the optimistic slot to a random interested neighbor outside the preferred set, returns the new unchoked set
+    public synchronized Set<Neighbor> rotateOptimistic(Collection<Neighbor> neighbors) {
+        Neighbor previous = optimistic;
+        optimistic = null;
+        if (hasOptimisticSlot()) {
+            // Reservoir sampling, a uniform pick in one pass without collecting the candidates first.
+            // The previous pick only gets the slot again if there is nobody else.
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int candidates = 0;
+            for (Neighbor neighbor : neighbors) {
+                if (neighbor != previous && neighbor.isInterested() && !preferred.contains(neighbor) && random.nextInt(++candidates) == 0) {
+                    optimistic = neighbor;
+                }
+            }
+            if (optimistic == null && previous != null && previous.isInterested() && !preferred.contains(previous)) {
+                optimistic = previous;
+            }
+        }
+        return unchokedSet();
+    }
+
+    public synchronized Set<Neighbor> getPreferred() {
+        return preferred;
+    }
+
+    public synchronized Neighbor getOptimistic() {
+        return optimistic;
+    }
+
+    // A disconnected neighbor gives its slot up right away instead of at the next round
+    public synchronized void removeNeighbor(Neighbor neighbor) {
+        if (preferred.contains(neighbor)) {
+            Set<Neighbor> remaining = new HashSet<>(preferred);
+            remaining.remove(neighbor);
+            preferred = remaining;
+        }
+        if (optimistic == neighbor) {
+            optimistic = null;
+        }
+    }
+
+    private boolean hasOptimisticSlot() {
+        return preferred.size() < maxUnchoked;
+    }
+
+    private Set<Neighbor> unchokedSet() {
+        if (optimistic == null) {
+            return preferred;
+        }
+        Set<Neighbor> unchoked = new HashSet<>(preferred);
+        unchoked.add(optimistic);
+        return unchoked;
+    }
+
+    // SplitMix64 finalizer, spreads neighboring peer IDs over the whole range
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private static class Ranked implements Comparable<Ranked> {
+        final Neighbor neighbor;
+        final double rate;
+        final long tieBreak;
+
+        Ranked(Neighbor neighbor, double rate, long tieBreak) {
+            this.neighbor = neighbor;
+            this.rate = rate;
+            this.tieBreak = tieBreak;
+        }
+
+        boolean isBelow(double otherRate, long otherTieBreak) {
+            int byRate = Double.compare(rate, otherRate);
+            return byRate < 0 || (byRate == 0 && tieBreak < otherTieBreak);
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            int byRate = Double.compare(rate, other.rate);
+            return byRate != 0 ? byRate : Long.compare(tieBreak, other.tieBreak);
+        }
+    }
+}
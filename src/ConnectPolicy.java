@@ -0,0 +1,44 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Deadlines and retry schedule for outbound connections, shared by both network engines.
+// A peer listed before us may not be listening yet (it could still be hashing its file), so a refused or timed out
+// connect is retried with exponential backoff instead of being given up right away.
+public class ConnectPolicy {
+    private final int connectTimeout; // Milliseconds until the TCP connect has to be done
+    private final int handshakeTimeout; // Milliseconds until the other side's handshake has to be in
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+
+    public ConnectPolicy(int connectTimeout, int handshakeTimeout, int maxAttempts, long initialBackoff, long maxBackoff) {
+        if (connectTimeout <= 0 || handshakeTimeout <= 0 || maxAttempts < 1 || initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("Invalid connect settings: timeout " + connectTimeout + ", handshake timeout "
+                    + handshakeTimeout + ", attempts " + maxAttempts + ", backoff " + initialBackoff + "-" + maxBackoff);
+        }
+        this.connectTimeout = connectTimeout;
+        this.handshakeTimeout = handshakeTimeout;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    public boolean canRetry(int attemptsMade) {
+        return attemptsMade < maxAttempts;
+    }
+
+    // Wait before the given attempt (2 is the first retry): the initial backoff doubled for every retry up to the cap,
+    // minus up to a quarter at random so peers that were refused together don't all come back at the same moment
+    public long backoffBefore(int attempt) {
+        long delay = initialBackoff << Math.min(attempt - 2, 30);
+        delay = Math.min(Math.max(delay, initialBackoff), maxBackoff);
+        return delay - ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// Reads messages from a blocking channel for the blocking engine, one reader per connection.
+// Everything is read into one pooled buffer and the messages returned by next() are views into it,
+// so a PIECE or BLOCK payload goes from the socket into the piece store without another copy.
+// A message is only valid until the next call to next().
+public class FrameReader {
+    private final ReadableByteChannel channel;
+    private final BufferPool bufferPool;
+    private ByteBuffer buffer; // Unread bytes are between position and limit
+
+    public FrameReader(ReadableByteChannel channel, BufferPool bufferPool, int initialCapacity) {
+        this.channel = channel;
+        this.bufferPool = bufferPool;
+        this.buffer = bufferPool.acquire(initialCapacity);
+        this.buffer.clear().flip(); // Nothing read yet
+    }
+
+    public Message next() throws IOException {
+        while (true) {
+            if (buffer.remaining() >= 4) {
+                int frameLength = Message.frameLength(buffer, Message.MAX_MESSAGE_LENGTH);
+                if (buffer.remaining() >= frameLength) {
+                    return Message.decode(buffer, Message.MAX_MESSAGE_LENGTH);
+                }
+                if (buffer.capacity() < frameLength) {
+                    grow(frameLength);
+                }
+            }
+
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read == -1) {
+                throw new EOFException("Connection closed by peer");
+            }
+        }
+    }
+
+    // Gives the buffer back to the pool, the reader can't be used afterwards
+    public void close() {
+        bufferPool.release(buffer);
+        buffer = null;
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer bigger = bufferPool.acquire(capacity);
+        bigger.clear();
+        bigger.put(buffer);
+        bigger.flip();
+        bufferPool.release(buffer);
+        buffer = bigger;
+    }
+}
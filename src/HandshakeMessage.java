@@ -1,83 +1,131 @@
 import java.io.*;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.List;
-import java.util.ArrayList;
+import java.util.Map;
 
 public class HandshakeMessage {
-    private static final String HEADER = "P2PFILESHARINGPROJ";
-    private static final int ZERO_BITS_LENGTH = 10; // 10 zero bytes
+    public static final int LENGTH = 32;
+    private static final byte[] HEADER = "P2PFILESHARINGPROJ".getBytes(StandardCharsets.US_ASCII);
+    private static final int PEER_ID_OFFSET = 28; // Header and 10 zero bytes come first
+
+    // The last of the zero bytes announces optional protocol features. Older peers send 0 there and never look at it.
+    private static final int FEATURES_OFFSET = 27;
+    public static final byte FEATURE_HAVE_MULTI = 0x01; // Understands HAVE_MULTI messages
+    private static final byte LOCAL_FEATURES = FEATURE_HAVE_MULTI;
+
+    // Everything but the peer ID is the same in every handshake we send, it is only built once
+    private static final byte[] TEMPLATE = new byte[LENGTH];
+
+    static {
+        System.arraycopy(HEADER, 0, TEMPLATE, 0, HEADER.length);
+        TEMPLATE[FEATURES_OFFSET] = LOCAL_FEATURES;
+    }
 
     public static byte[] createHandshakeMessage(int peerID) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            baos.write(HEADER.getBytes());
-            baos.write(new byte[ZERO_BITS_LENGTH]); // Write 10 zero bytes
-            baos.write(ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(peerID).array());
-
-            return baos.toByteArray();
-        } catch (IOException e) {
-            // This should never happen with a ByteArrayOutputStream
-            throw new RuntimeException(e);
-        }
+        byte[] handshakeMsg = TEMPLATE.clone();
+        putHandshake(ByteBuffer.wrap(handshakeMsg), peerID);
+        return handshakeMsg;
+    }
+
+    // Puts our handshake at the buffer's position, so it can share a buffer with the frames that follow it
+    public static void putHandshake(ByteBuffer buffer, int peerID) {
+        int start = buffer.position();
+        buffer.put(TEMPLATE);
+        buffer.putInt(start + PEER_ID_OFFSET, peerID);
     }
 
     public static void sendHandshake(Socket socket, int peerID) throws IOException {
-        byte[] handshakeMsg = createHandshakeMessage(peerID);
-        System.out.println("Sending handshake to " + socket.getInetAddress() + ": " + Arrays.toString(handshakeMsg));
-        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-        dos.write(handshakeMsg);
-        dos.flush();
+        sendHandshake(socket, peerID, null);
     }
 
-    public static int receiveAndValidateHandshake(Socket socket, List<PeerInfo> allPeers) throws IOException {
-        DataInputStream dis = new DataInputStream(socket.getInputStream());
-        byte[] receivedMsg = new byte[32];
-        dis.readFully(receivedMsg);
+    // Sends our handshake, followed by the given frame in the same write (null sends the handshake alone)
+    public static void sendHandshake(Socket socket, int peerID, Message firstMessage) throws IOException {
+        int length = LENGTH + (firstMessage == null ? 0 : firstMessage.getEncodedLength());
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        putHandshake(buffer, peerID);
+        if (firstMessage != null) {
+            firstMessage.encodeTo(buffer);
+        }
+        buffer.flip();
+        Log.trace(() -> "Sending handshake to " + socket.getInetAddress() + ": " + Arrays.toString(Arrays.copyOf(buffer.array(), LENGTH)));
 
-        String header = new String(receivedMsg, 0, 18); // Firest 18 Bytes for header
-        int peerID = ByteBuffer.wrap(receivedMsg, 28, 4).getInt();
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            OutputStream out = socket.getOutputStream();
+            out.write(buffer.array(), 0, length);
+            out.flush();
+        }
+    }
 
-        boolean isHeaderValid = HEADER.equals(header);
-        boolean isPeerKnown = allPeers.stream().anyMatch(p -> p.peerID == peerID);
+    // Returns the received handshake, or null if it is invalid
+    public static byte[] receiveAndValidateHandshake(Socket socket, Map<Integer, PeerInfo> knownPeers) throws IOException {
+        byte[] receivedMsg = readHandshake(socket);
+        if (receivedMsg == null) {
+            throw new EOFException("Connection closed during the handshake");
+        }
 
-        if (isHeaderValid && isPeerKnown) {
-            //System.out.println("Handshake received successfully from " + peerID);
-            return peerID; // Return the validated peerID
-        } else {
-            System.out.println("Handshake failed.");
-            return -1;
+        int peerID = validateHandshake(receivedMsg, knownPeers);
+        if (peerID == -1) {
+            Log.warn("Handshake failed.");
+            return null;
+        }
+        return receivedMsg;
+    }
+
+    // Reads exactly one handshake and nothing after it, the frames behind it are left to the read loop.
+    // Goes through the socket's stream so SO_TIMEOUT applies. Null if the other side closed the connection first.
+    private static byte[] readHandshake(Socket socket) throws IOException {
+        byte[] receivedMsg = new byte[LENGTH];
+        if (socket.getInputStream().readNBytes(receivedMsg, 0, LENGTH) < LENGTH) {
+            return null;
         }
+        return receivedMsg;
     }
 
-    public static boolean exchangeHandshake(Socket socket, int peerID, List<PeerInfo> allPeers) throws IOException {
-        sendHandshake(socket, peerID);
+    public static int peerIDOf(byte[] handshake) {
+        return ByteBuffer.wrap(handshake).getInt(PEER_ID_OFFSET);
+    }
 
-        // Wait for the handshake response
-        DataInputStream dis = new DataInputStream(socket.getInputStream());
-        byte[] receivedMsg = new byte[32];
-        try {
-            dis.readFully(receivedMsg);
-        } catch (EOFException e) {
-            System.out.println("Peer closed connection before completing handshake.");
-            return false;
+    // Feature bits the other side announced, see FEATURE_HAVE_MULTI
+    public static byte featuresOf(byte[] handshake) {
+        return handshake[FEATURES_OFFSET];
+    }
+
+    // Checks a complete 32 byte handshake, returns the sender's peerID or -1 if it is invalid
+    public static int validateHandshake(byte[] receivedMsg, Map<Integer, PeerInfo> knownPeers) {
+        if (!Arrays.equals(receivedMsg, 0, HEADER.length, HEADER, 0, HEADER.length)) {
+            return -1;
         }
+        int peerID = peerIDOf(receivedMsg);
+        return knownPeers.containsKey(peerID) ? peerID : -1;
+    }
 
-        // Validate the received handshake message.
-        String header = new String(receivedMsg, 0, 18);
-        int receivedPeerID = ByteBuffer.wrap(receivedMsg, 28, 4).getInt();
+    // Returns the other side's handshake, or null if the exchange failed. A non-null firstMessage goes out
+    // in the same write as our handshake, without waiting for the reply.
+    public static byte[] exchangeHandshake(Socket socket, int peerID, Map<Integer, PeerInfo> knownPeers, Message firstMessage) throws IOException {
+        sendHandshake(socket, peerID, firstMessage);
 
-        boolean isHeaderValid = HEADER.equals(header);
-        // Check if the receivedPeerID is in the list of known peers (this step may vary based on your requirements).
-        boolean isPeerKnown = allPeers.stream().anyMatch(p -> p.peerID == receivedPeerID);
+        // Wait for the handshake response
+        byte[] receivedMsg = readHandshake(socket);
+        if (receivedMsg == null) {
+            Log.warn("Peer closed connection before completing handshake.");
+            return null;
+        }
 
-        if (isHeaderValid && isPeerKnown) {
-            System.out.println("Handshake exchange successful with peer " + receivedPeerID);
-            return true;
+        int receivedPeerID = validateHandshake(receivedMsg, knownPeers);
+        if (receivedPeerID != -1) {
+            Log.info("Handshake exchange successful with peer " + receivedPeerID);
+            return receivedMsg;
         } else {
-            System.out.println("Invalid handshake received.");
-            return false;
+            Log.warn("Invalid handshake received.");
+            return null;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps every piece as a byte[] on the heap and writes the whole file out once the download is complete.
+// This is the original storage behaviour, only suited for small files.
+public class HeapPieceStore implements PieceStore {
+    private final String filePath;
+    private final long fileSize;
+    private final int pieceSize;
+    private final int numPieces;
+    private final Map<Integer, byte[]> filePieces = new ConcurrentHashMap<>();
+
+    public HeapPieceStore(String filePath, long fileSize, int pieceSize, boolean hasFile) throws IOException {
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numPieces = (int) ((fileSize + pieceSize - 1) / pieceSize);
+
+        if (hasFile) {
+            loadFile();
+        }
+    }
+
+    private void loadFile() throws IOException {
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
+            for (int pieceIndex = 0; pieceIndex < numPieces; pieceIndex++) {
+                byte[] piece = new byte[getPieceLength(pieceIndex)];
+                dis.readFully(piece);
+                filePieces.put(pieceIndex, piece);
+            }
+        }
+        Log.info("File pieces initialized successfully.");
+    }
+
+    @Override
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    @Override
+    public int getPieceLength(int pieceIndex) {
+        if (pieceIndex == numPieces - 1) { // Last piece might be smaller
+            return (int) (fileSize - (long) pieceSize * pieceIndex);
+        }
+        return pieceSize;
+    }
+
+    @Override
+    public byte[] readPiece(int pieceIndex) {
+        return filePieces.get(pieceIndex);
+    }
+
+    @Override
+    public void writePiece(int pieceIndex, byte[] pieceContent) {
+        filePieces.put(pieceIndex, pieceContent);
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer blockContent) {
+        byte[] piece = filePieces.computeIfAbsent(pieceIndex, i -> new byte[getPieceLength(i)]);
+        blockContent.get(blockContent.position(), piece, offset, blockContent.remaining());
+    }
+
+    @Override
+    public ByteBuffer sliceBlock(int pieceIndex, int offset, int length) {
+        // View of the stored array, pieces are only uploaded once they are complete and don't change anymore
+        return ByteBuffer.wrap(filePieces.get(pieceIndex), offset, length).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(filePath)) {
+            for (int i = 0; i < numPieces; i++) {
+                byte[] piece = filePieces.get(i);
+                if (piece == null) {
+                    throw new IOException("Missing piece " + i + ", cannot assemble the file.");
+                }
+                fos.write(piece);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release
+    }
+}
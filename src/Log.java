@@ -0,0 +1,366 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Asynchronous logging for the console diagnostics and the peer log files.
+// Callers only put the line into a bounded ring buffer. One writer thread takes lines out in batches, formats them
+// and writes them, flushing once LogFlushLines lines are pending or the oldest pending line is LogFlushMillis old,
+// instead of flushing after every line under the PrintStream lock.
+//
+// trace/debug take a Supplier, the message is only built when the level is enabled.
+// When the buffer is full, LogOverflow decides: block waits for space, drop throws the line away and counts it.
+// The console pipeline belongs to the process: whoever owns it (main, SwarmBenchmark) starts and closes it, and
+// peers only tag their lines with their ID. Every peer opens an EventFile of its own for its log_peer_<id>.log and
+// closes it again, the lines go through the same writer thread. Those lines are the protocol record of the peer
+// (connections, choke and unchoke, interest, HAVE, downloaded pieces, completion), so they always wait for space.
+// Before start() lines are written directly, so early startup messages aren't lost.
+public final class Log {
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR;
+
+        public static Level fromConfig(String value) {
+            return Level.valueOf(value.toUpperCase());
+        }
+    }
+
+    public enum Overflow {
+        BLOCK, DROP;
+
+        public static Overflow fromConfig(String value) {
+            return Overflow.valueOf(value.toUpperCase());
+        }
+    }
+
+    // One peer's log file. Lines and the close go through the writer thread, so close() comes after every line.
+    public static final class EventFile {
+        private final Writer writer;
+        private volatile boolean closed = false;
+
+        private EventFile(Writer writer) {
+            this.writer = writer;
+        }
+
+        public void event(String message) {
+            if (!closed) {
+                enqueue(new Line(null, message, null, this));
+            }
+        }
+
+        // Writes out the lines queued for the file and closes it
+        public void close() {
+            if (!closed) {
+                closed = true;
+                enqueue(new Line(null, null, null, this));
+            }
+        }
+    }
+
+    private static final class Line {
+        final long timeMillis;
+        final Level level; // null for peer log file lines
+        final String message; // null for the close of an event file
+        final Throwable error;
+        final Integer peerID; // Peer the logging thread works for, null outside of a peer
+        final EventFile file; // Where an event line goes, null for console lines
+
+        Line(Level level, String message, Throwable error, EventFile file) {
+            this.timeMillis = System.currentTimeMillis();
+            this.peerID = PEER.get();
+            this.level = level;
+            this.message = message;
+            this.error = error;
+            this.file = file;
+        }
+    }
+
+    // Peer the current thread works for. Threads inherit it from the thread that starts them, so whatever a peer's
+    // threads print is tagged with its ID and the peers of one JVM (SwarmBenchmark) can be told apart on the console.
+    private static final InheritableThreadLocal<Integer> PEER = new InheritableThreadLocal<>();
+
+    private static final Line STOP = new Line(null, null, null, null);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile int threshold = Level.INFO.ordinal();
+    private static volatile boolean started = false;
+    private static Overflow overflow = Overflow.BLOCK;
+    private static BlockingQueue<Line> queue;
+    private static int flushLines;
+    private static long flushNanos;
+    private static Writer console;
+    private static Thread writerThread;
+    private static final Set<EventFile> unflushedFiles = new HashSet<>(); // Only touched by the writer thread
+    private static final AtomicLong droppedLines = new AtomicLong();
+
+    private Log() {
+    }
+
+    // Starts the console pipeline of the process. It is only started once, later calls keep the first settings.
+    public static synchronized void start(Level level, Overflow overflowPolicy, int capacity, int flushLineCount, long flushMillis) {
+        if (started) {
+            return;
+        }
+        threshold = level.ordinal();
+        overflow = overflowPolicy;
+        queue = new ArrayBlockingQueue<>(Math.max(16, capacity));
+        flushLines = Math.max(1, flushLineCount);
+        flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushMillis));
+        console = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+
+        writerThread = new Thread(Log::runWriter, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        started = true;
+    }
+
+    // Writes out everything that is still queued and stops the writer thread. Event files that are still open are
+    // flushed and stay usable, their lines are written directly from then on.
+    public static void close() {
+        Thread writer;
+        synchronized (Log.class) {
+            if (!started) {
+                return;
+            }
+            started = false; // Late lines are printed directly from now on
+            writer = writerThread;
+        }
+        try {
+            queue.put(STOP);
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Opens (appending) a peer's log file
+    public static EventFile openEventFile(String path) throws IOException {
+        return new EventFile(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8), 1 << 16));
+    }
+
+    // Tags the current thread's lines with peerID, returns the previous tag for restorePeer
+    public static Integer enterPeer(int peerID) {
+        Integer previous = PEER.get();
+        PEER.set(peerID);
+        return previous;
+    }
+
+    public static void restorePeer(Integer previous) {
+        if (previous == null) {
+            PEER.remove();
+        } else {
+            PEER.set(previous);
+        }
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public static void trace(Supplier<String> message) {
+        if (isEnabled(Level.TRACE)) {
+            enqueue(new Line(Level.TRACE, message.get(), null, null));
+        }
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            enqueue(new Line(Level.DEBUG, message.get(), null, null));
+        }
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            enqueue(new Line(Level.INFO, message, null, null));
+        }
+    }
+
+    public static void warn(String message) {
+        warn(message, null);
+    }
+
+    public static void warn(String message, Throwable error) {
+        if (isEnabled(Level.WARN)) {
+            enqueue(new Line(Level.WARN, message, error, null));
+        }
+    }
+
+    public static void error(String message, Throwable error) {
+        enqueue(new Line(Level.ERROR, message, error, null));
+    }
+
+    public static long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    private static void enqueue(Line line) {
+        if (!started) {
+            writeDirect(line);
+            return;
+        }
+        if (overflow == Overflow.DROP && line.level != null) {
+            if (!queue.offer(line)) {
+                droppedLines.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            queue.put(line);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            droppedLines.incrementAndGet();
+        }
+    }
+
+    private static synchronized void writeDirect(Line line) {
+        if (line.file != null) {
+            writeEvent(line);
+            if (line.message != null) {
+                flushFile(line.file);
+            }
+            return;
+        }
+        System.out.println(format(line));
+    }
+
+    private static void runWriter() {
+        List<Line> batch = new ArrayList<>(flushLines);
+        int pending = 0; // Lines written but not flushed yet
+        long oldestPending = 0;
+        boolean stop = false;
+
+        while (!stop) {
+            try {
+                Line first = pending == 0
+                        ? queue.take()
+                        : queue.poll(oldestPending + flushNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, flushLines - 1);
+                }
+            } catch (InterruptedException e) {
+                stop = true;
+            }
+
+            for (Line line : batch) {
+                if (line == STOP) {
+                    stop = true;
+                    continue;
+                }
+                if (pending++ == 0) {
+                    oldestPending = System.nanoTime();
+                }
+                write(line);
+            }
+            batch.clear();
+
+            long dropped = droppedLines.getAndSet(0);
+            if (dropped > 0) {
+                write(new Line(Level.WARN, "Log buffer full, dropped " + dropped + " lines", null, null));
+                pending++;
+            }
+
+            if (pending > 0 && (stop || pending >= flushLines || System.nanoTime() - oldestPending >= flushNanos)) {
+                flush();
+                pending = 0;
+            }
+        }
+
+        // Lines that were queued behind STOP
+        queue.drainTo(batch);
+        for (Line line : batch) {
+            if (line != STOP) {
+                write(line);
+            }
+        }
+        flush();
+    }
+
+    private static void write(Line line) {
+        if (line.file != null) {
+            writeEvent(line);
+            if (line.message == null) {
+                unflushedFiles.remove(line.file);
+            } else {
+                unflushedFiles.add(line.file);
+            }
+            return;
+        }
+        try {
+            console.write(format(line));
+            console.write('\n');
+        } catch (IOException e) {
+            System.err.println("Failed to write log line: " + e.getMessage());
+        }
+    }
+
+    private static void writeEvent(Line line) {
+        try {
+            if (line.message == null) {
+                line.file.writer.close(); // Flushes what was written before
+            } else {
+                line.file.writer.write(formatEvent(line));
+                line.file.writer.write('\n');
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write to log file: " + e.getMessage());
+        }
+    }
+
+    private static void flush() {
+        try {
+            console.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to flush log: " + e.getMessage());
+        }
+        for (EventFile file : unflushedFiles) {
+            flushFile(file);
+        }
+        unflushedFiles.clear();
+    }
+
+    private static void flushFile(EventFile file) {
+        try {
+            file.writer.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to flush log file: " + e.getMessage());
+        }
+    }
+
+    // "[time]: message", the format of the peer log file
+    private static String formatEvent(Line line) {
+        return "[" + TIME_FORMAT.format(Instant.ofEpochMilli(line.timeMillis)) + "]: " + line.message;
+    }
+
+    private static String format(Line line) {
+        StringBuilder text = new StringBuilder(line.message.length() + 32);
+        text.append(TIME_FORMAT.format(Instant.ofEpochMilli(line.timeMillis)))
+                .append(' ').append(line.level).append(' ');
+        if (line.peerID != null) {
+            text.append('[').append(line.peerID).append("] ");
+        }
+        text.append(line.message);
+        if (line.error != null) {
+            StringWriter trace = new StringWriter();
+            line.error.printStackTrace(new PrintWriter(trace));
+            text.append('\n').append(trace.toString().stripTrailing());
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// Memory-mapped piece store. Seeders map the existing file read only and serve pieces straight out of the page cache,
+// leechers pre-size the target file and write every received piece into its mapped region.
+// Nothing but the mapping itself lives on the heap, so memory usage stays flat no matter how big the file is.
+public class MappedPieceStore implements PieceStore {
+    private final long fileSize;
+    private final int pieceSize;
+    private final int numPieces;
+    private final boolean readOnly;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final boolean openedExistingData;
+
+    // A single MappedByteBuffer can't be bigger than 2GB, so the file is split into regions of whole pieces.
+    private final int piecesPerRegion;
+    private final MappedByteBuffer[] regions;
+
+    public MappedPieceStore(String filePath, long fileSize, int pieceSize, boolean hasFile) throws IOException {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numPieces = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        this.readOnly = hasFile;
+
+        File target = new File(filePath);
+        if (hasFile && target.length() < fileSize) {
+            throw new IOException("File " + filePath + " is smaller than the configured FileSize " + fileSize);
+        }
+
+        this.openedExistingData = target.isFile() && target.length() == fileSize;
+        this.file = new RandomAccessFile(target, readOnly ? "r" : "rw");
+        if (!readOnly) {
+            file.setLength(fileSize); // Pre-size the file so every piece has a place to be written to
+        }
+        this.channel = file.getChannel();
+
+        this.piecesPerRegion = Math.max(1, Integer.MAX_VALUE / pieceSize);
+        long regionSize = (long) piecesPerRegion * pieceSize;
+        int numRegions = (int) ((fileSize + regionSize - 1) / regionSize);
+        this.regions = new MappedByteBuffer[numRegions];
+
+        FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        for (int i = 0; i < numRegions; i++) {
+            long start = i * regionSize;
+            regions[i] = channel.map(mode, start, Math.min(regionSize, fileSize - start));
+        }
+    }
+
+    @Override
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    @Override
+    public int getPieceLength(int pieceIndex) {
+        if (pieceIndex == numPieces - 1) { // Last piece might be smaller
+            return (int) (fileSize - (long) pieceSize * pieceIndex);
+        }
+        return pieceSize;
+    }
+
+    private MappedByteBuffer regionOf(int pieceIndex) {
+        return regions[pieceIndex / piecesPerRegion];
+    }
+
+    private int offsetInRegion(int pieceIndex) {
+        return (pieceIndex % piecesPerRegion) * pieceSize;
+    }
+
+    @Override
+    public byte[] readPiece(int pieceIndex) {
+        byte[] piece = new byte[getPieceLength(pieceIndex)];
+        // Absolute get, doesn't touch the shared position so concurrent readers are fine
+        regionOf(pieceIndex).get(offsetInRegion(pieceIndex), piece);
+        return piece;
+    }
+
+    @Override
+    public byte[] readBlock(int pieceIndex, int offset, int length) {
+        byte[] block = new byte[length];
+        regionOf(pieceIndex).get(offsetInRegion(pieceIndex) + offset, block);
+        return block;
+    }
+
+    @Override
+    public ByteBuffer sliceBlock(int pieceIndex, int offset, int length) {
+        // Slice of the mapping, no copy is made
+        return regionOf(pieceIndex).slice(offsetInRegion(pieceIndex) + offset, length).asReadOnlyBuffer();
+    }
+
+    @Override
+    public void writePiece(int pieceIndex, byte[] pieceContent) throws IOException {
+        if (readOnly) {
+            throw new IOException("Piece store is read only, we already have the complete file.");
+        }
+        if (pieceContent.length != getPieceLength(pieceIndex)) {
+            throw new IOException("Piece " + pieceIndex + " has length " + pieceContent.length + ", expected " + getPieceLength(pieceIndex));
+        }
+        regionOf(pieceIndex).put(offsetInRegion(pieceIndex), pieceContent);
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer blockContent) throws IOException {
+        if (readOnly) {
+            throw new IOException("Piece store is read only, we already have the complete file.");
+        }
+        int length = blockContent.remaining();
+        if (offset < 0 || offset + length > getPieceLength(pieceIndex)) {
+            throw new IOException("Block at offset " + offset + " doesn't fit into piece " + pieceIndex);
+        }
+        regionOf(pieceIndex).put(offsetInRegion(pieceIndex) + offset, blockContent, blockContent.position(), length);
+    }
+
+    @Override
+    public boolean supportsTransfer() {
+        return true;
+    }
+
+    @Override
+    public void transferBlock(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        long position = (long) pieceIndex * pieceSize + offset;
+        long remaining = length;
+
+        // transferTo may send less than asked for, keep going until the whole block is out
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public boolean openedExistingData() {
+        return openedExistingData;
+    }
+
+    @Override
+    public void flush() {
+        if (!readOnly) {
+            for (MappedByteBuffer region : regions) {
+                region.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+        file.close();
+    }
+}
@@ -1,12 +1,13 @@
-import java.io.DataInputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.BitSet;
 
 public class Message {
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024 * 1024; // Anything bigger is treated as a broken peer
+
     private byte messageType;
     private byte[] payload;
+    private ByteBuffer payloadBuffer; // Received messages: a view into the connection's read buffer, see decode
 
     public Message(byte messageType, byte[] payload) {
         this.messageType = messageType;
@@ -22,10 +23,76 @@ public class Message {
         return this.messageType;
     }
 
+    // Copies a received payload out of the read buffer, only meant for the rare messages that need an array (BITFIELD)
     public byte[] getPayload() {
+        if (payload == null && payloadBuffer != null) {
+            byte[] copy = new byte[payloadBuffer.remaining()];
+            payloadBuffer.get(payloadBuffer.position(), copy);
+            return copy;
+        }
         return payload;
     }
 
+    // The payload without copying it. For received messages it is only valid until the handler returns,
+    // after that the read buffer is reused for the next frame.
+    public ByteBuffer getPayloadBuffer() {
+        if (payloadBuffer != null) {
+            return payloadBuffer;
+        }
+        return payload != null ? ByteBuffer.wrap(payload) : ByteBuffer.allocate(0);
+    }
+
+    // 4 byte length prefix + type + payload
+    public int getEncodedLength() {
+        return 4 + 1 + (payload != null ? payload.length : 0);
+    }
+
+    public void encodeTo(ByteBuffer buffer) {
+        buffer.putInt(1 + (payload != null ? payload.length : 0));
+        buffer.put(messageType);
+        if (payload != null) {
+            buffer.put(payload);
+        }
+    }
+
+    // Encodes the message into a buffer from the pool, ready to be written. The writer releases it afterwards.
+    public ByteBuffer encode(BufferPool pool) {
+        ByteBuffer buffer = pool.acquire(getEncodedLength());
+        encodeTo(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    // Decodes the frame at the buffer's position if it is complete, the payload stays a slice of the buffer.
+    // Returns null if more bytes are needed. frameLength(buffer) tells how many bytes the whole frame takes.
+    public static Message decode(ByteBuffer buffer, int maxFrameLength) throws IOException {
+        if (buffer.remaining() < 4) {
+            return null;
+        }
+        int messageLength = frameLength(buffer, maxFrameLength) - 4;
+        if (buffer.remaining() < 4 + messageLength) {
+            return null;
+        }
+
+        int start = buffer.position();
+        byte messageType = buffer.get(start + 4);
+        ByteBuffer payload = messageLength > 1 ? buffer.slice(start + 5, messageLength - 1) : null;
+        buffer.position(start + 4 + messageLength);
+
+        Message message = new Message(messageType);
+        message.payloadBuffer = payload;
+        return message;
+    }
+
+    // Length of the frame starting at the buffer's position including the 4 byte prefix, needs 4 readable bytes
+    public static int frameLength(ByteBuffer buffer, int maxFrameLength) throws IOException {
+        int messageLength = buffer.getInt(buffer.position());
+        if (messageLength < 1 || messageLength > maxFrameLength) {
+            throw new IOException("Invalid message length " + messageLength);
+        }
+        return 4 + messageLength;
+    }
+
 
     public byte[] getBytes() {
         // Function used to convert message to bytes to send
@@ -80,10 +147,23 @@ public class Message {
         return new Message(MessageType.NOT_INTERESTED, null);
     }
 
-    public static Message createHaveMessage(int pieceIndex) {
-        ByteBuffer buffer = ByteBuffer.allocate(4); // 4 byte piece index field
-        buffer.putInt(pieceIndex);
-        return new Message(MessageType.HAVE, buffer.array());
+    // Piece indexes go on the wire as piece addresses, see SharedFiles
+    public static Message createHaveMessage(SharedFiles files, int pieceIndex) {
+        ByteBuffer payload = ByteBuffer.allocate(files.getPieceAddressLength());
+        files.putPiece(payload, pieceIndex);
+        return new Message(MessageType.HAVE, payload.array());
+    }
+
+    public static Message createHaveMultiMessage(SharedFiles files, BitSet pieces) {
+        ByteBuffer payload = ByteBuffer.allocate(files.getPieceAddressLength() * pieces.cardinality());
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            files.putPiece(payload, i);
+        }
+        return new Message(MessageType.HAVE_MULTI, payload.array());
+    }
+
+    public static Message createManifestMessage(PieceManifest manifest) {
+        return new Message(MessageType.MANIFEST, manifest.encode());
     }
 
     public static Message createBitfieldMessage(BitSet bitfield, int numPieces) {
@@ -91,15 +171,46 @@ public class Message {
         return new Message(MessageType.BITFIELD, bitfieldPayload);
     }
 
-    public static Message createRequestMessage(int pieceIndex) {
-        ByteBuffer buffer = ByteBuffer.allocate(4); // 4 byte piece index field
-        buffer.putInt(pieceIndex);
-        return new Message(MessageType.REQUEST, buffer.array());
+    public static Message createRequestMessage(SharedFiles files, int pieceIndex) {
+        ByteBuffer payload = ByteBuffer.allocate(files.getPieceAddressLength());
+        files.putPiece(payload, pieceIndex);
+        return new Message(MessageType.REQUEST, payload.array());
+    }
+
+    // Only the length, type and piece address of a PIECE message, the content is written separately
+    public static void putPieceHeader(ByteBuffer buffer, SharedFiles files, int pieceIndex, int pieceLength) {
+        buffer.putInt(1 + files.getPieceAddressLength() + pieceLength);
+        buffer.put(MessageType.PIECE);
+        files.putPiece(buffer, pieceIndex);
+    }
+
+    public static Message createBlockRequestMessage(SharedFiles files, int pieceIndex, int offset, int length) {
+        ByteBuffer payload = ByteBuffer.allocate(files.getPieceAddressLength() + 8); // piece address, offset and length
+        files.putPiece(payload, pieceIndex);
+        payload.putInt(offset);
+        payload.putInt(length);
+        return new Message(MessageType.REQUEST_BLOCK, payload.array());
+    }
+
+    public static Message createCancelMessage(SharedFiles files, int pieceIndex, int offset, int length) {
+        ByteBuffer payload = ByteBuffer.allocate(files.getPieceAddressLength() + 8); // Same layout as REQUEST_BLOCK
+        files.putPiece(payload, pieceIndex);
+        payload.putInt(offset);
+        payload.putInt(length);
+        return new Message(MessageType.CANCEL, payload.array());
+    }
+
+    // Length, type, piece address and offset of a BLOCK message, the content is written separately
+    public static void putBlockHeader(ByteBuffer buffer, SharedFiles files, int pieceIndex, int offset, int blockLength) {
+        buffer.putInt(1 + files.getPieceAddressLength() + 4 + blockLength);
+        buffer.put(MessageType.BLOCK);
+        files.putPiece(buffer, pieceIndex);
+        buffer.putInt(offset);
     }
 
-    public static Message createPieceMessage(int pieceIndex, byte[] pieceContent) {
-        ByteBuffer buffer = ByteBuffer.allocate(4 + pieceContent.length); // 4 for piece index + the content after
-        buffer.putInt(pieceIndex);
+    public static Message createPieceMessage(SharedFiles files, int pieceIndex, byte[] pieceContent) {
+        ByteBuffer buffer = ByteBuffer.allocate(files.getPieceAddressLength() + pieceContent.length); // Piece address + the content after
+        files.putPiece(buffer, pieceIndex);
         buffer.put(pieceContent);
         return new Message(MessageType.PIECE, buffer.array());
     }
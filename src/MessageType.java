@@ -1,3 +1,4 @@
+// Piece indexes are sent as piece addresses: 4 bytes, or file ID + index within the file with a FileList (see SharedFiles)
 public class MessageType {
     
     public static final byte CHOKE = 0;
@@ -8,4 +9,9 @@ public class MessageType {
     public static final byte BITFIELD = 5;
     public static final byte REQUEST = 6;
     public static final byte PIECE = 7;
+    public static final byte REQUEST_BLOCK = 8; // piece address, offset, length
+    public static final byte BLOCK = 9; // piece address, offset, block content
+    public static final byte CANCEL = 10; // piece address, offset, length of a request that isn't needed anymore
+    public static final byte MANIFEST = 11; // per-piece digests of the shared file, see PieceManifest
+    public static final byte HAVE_MULTI = 12; // piece addresses. Only sent to peers that announced it in the handshake
 }
\ No newline at end of file
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// The pieces of every file in a FileList behind one PieceStore, numbered as in SharedFiles. Each file has a store of
+// the configured type of its own, calls are passed on to it with the index within the file.
+// A file is flushed as soon as its last piece is committed, so it is complete on disk without waiting for the rest.
+// Write-through stores share one I/O thread, however many files there are.
+public class MultiFilePieceStore implements PieceStore {
+    private final SharedFiles files;
+    private final PieceStore[] stores;
+    private final AtomicIntegerArray uncommitted; // Per file, pieces not committed yet
+    private final ExecutorService ioExecutor; // Null unless the stores are write-through
+
+    private MultiFilePieceStore(SharedFiles files, PieceStore[] stores, ExecutorService ioExecutor) {
+        this.files = files;
+        this.stores = stores;
+        this.ioExecutor = ioExecutor;
+        this.uncommitted = new AtomicIntegerArray(files.getFileCount());
+        for (int i = 0; i < files.getFileCount(); i++) {
+            uncommitted.set(i, files.getNumPieces(i));
+        }
+    }
+
+    // Opens every file of the list in directory, hasFile means all of them are there already
+    public static MultiFilePieceStore open(String type, Path directory, SharedFiles files, int pieceSize, boolean hasFile) throws IOException {
+        ExecutorService ioExecutor = null;
+        if (type != null && type.equalsIgnoreCase("writethrough") && !hasFile) {
+            ioExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "piece-io");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        PieceStore[] stores = new PieceStore[files.getFileCount()];
+        try {
+            for (int i = 0; i < stores.length; i++) {
+                Path path = directory.resolve(files.getName(i));
+                Files.createDirectories(path.getParent());
+                stores[i] = PieceStore.create(type, path.toString(), files.getSize(i), pieceSize, hasFile, ioExecutor);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (PieceStore store : stores) {
+                if (store != null) {
+                    store.close();
+                }
+            }
+            if (ioExecutor != null) {
+                ioExecutor.shutdown();
+            }
+            throw e;
+        }
+        return new MultiFilePieceStore(files, stores, ioExecutor);
+    }
+
+    private PieceStore storeOf(int pieceIndex) {
+        return stores[files.fileOf(pieceIndex)];
+    }
+
+    private int localIndex(int pieceIndex) {
+        return pieceIndex - files.getFirstPiece(files.fileOf(pieceIndex));
+    }
+
+    @Override
+    public int getNumPieces() {
+        return files.getTotalPieces();
+    }
+
+    @Override
+    public int getPieceLength(int pieceIndex) {
+        return storeOf(pieceIndex).getPieceLength(localIndex(pieceIndex));
+    }
+
+    @Override
+    public byte[] readPiece(int pieceIndex) throws IOException {
+        return storeOf(pieceIndex).readPiece(localIndex(pieceIndex));
+    }
+
+    @Override
+    public void writePiece(int pieceIndex, byte[] pieceContent) throws IOException {
+        storeOf(pieceIndex).writePiece(localIndex(pieceIndex), pieceContent);
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer blockContent) throws IOException {
+        storeOf(pieceIndex).writeBlock(localIndex(pieceIndex), offset, blockContent);
+    }
+
+    @Override
+    public byte[] readBlock(int pieceIndex, int offset, int length) throws IOException {
+        return storeOf(pieceIndex).readBlock(localIndex(pieceIndex), offset, length);
+    }
+
+    @Override
+    public ByteBuffer sliceBlock(int pieceIndex, int offset, int length) throws IOException {
+        return storeOf(pieceIndex).sliceBlock(localIndex(pieceIndex), offset, length);
+    }
+
+    @Override
+    public boolean supportsTransfer() {
+        return stores[0].supportsTransfer(); // Every file has the same type of store
+    }
+
+    @Override
+    public void transferBlock(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        storeOf(pieceIndex).transferBlock(localIndex(pieceIndex), offset, length, target);
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return stores[0].isPersistent();
+    }
+
+    // A checkpoint covers all files, it can only be trusted if none of them went missing
+    @Override
+    public boolean openedExistingData() {
+        for (PieceStore store : stores) {
+            if (!store.openedExistingData()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void commitPiece(int pieceIndex) throws IOException {
+        int file = files.fileOf(pieceIndex);
+        stores[file].commitPiece(pieceIndex - files.getFirstPiece(file));
+        if (uncommitted.decrementAndGet(file) == 0) {
+            stores[file].flush();
+            Log.info("File " + files.getName(file) + " complete (" + files.getSize(file) + " bytes)");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (PieceStore store : stores) {
+            store.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (PieceStore store : stores) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
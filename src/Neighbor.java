@@ -1,29 +1,58 @@
 import java.net.Socket;
 import java.util.BitSet;
 import java.util.Set;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Neighbor {
     private int peerID;
-    private boolean isChoked; // Are WE choking this neighbor or not
-    private boolean isInterested; // Is THIS PEER interested in us or not
+    private volatile boolean isChoked; // Are WE choking this neighbor or not
+    private volatile boolean isInterested; // Is THIS PEER interested in us or not
+    private volatile boolean isChokingUs = true; // Is THIS PEER choking us or not
     private Socket socket;
+    private NioConnection connection; // Only set when the NIO engine owns this neighbor's channel
     private BitSet pieces;
-    private long prevDownloadRate;
-    private Set<Integer> requestedPieces; // Pieces we are requesting from THIS PEER
-    private Map<Integer, ScheduledFuture<?>> requestTimeoutTasks = new HashMap<>();
+    private final TransferRate download = new TransferRate(); // PIECE/BLOCK payload bytes THIS PEER sent us
+    private final TransferRate upload = new TransferRate(); // PIECE/BLOCK payload bytes we sent THIS PEER
+    private final LongAdder blocksDownloaded = new LongAdder(); // PIECE/BLOCK messages, whatever their size
+    private final LongAdder blocksUploaded = new LongAdder();
+    private final LongAdder piecesCompleted = new LongAdder(); // Verified pieces whose last block came from THIS PEER
+    private final LongAdder requestTimeouts = new LongAdder();
+    private final LatencyHistogram requestLatency = new LatencyHistogram(); // REQUEST sent to its PIECE/BLOCK arriving
+    private Set<Long> requestedBlocks; // Blocks we are requesting from THIS PEER
+    private Map<Long, ScheduledFuture<?>> requestTimeoutTasks = new ConcurrentHashMap<>();
+    private final OutboundQueue outboundQueue; // Frames waiting for this neighbor's writer
+    private RequestWindow requestWindow; // How many pieces we may have requested from THIS PEER at once
+    private final AtomicBoolean manifestExchanged = new AtomicBoolean(); // A MANIFEST went one way or the other
+    private volatile byte features; // Feature bits from THIS PEER's handshake
+    private volatile long openedAt = System.nanoTime(); // When the TCP connection to THIS PEER was set up
+    private final AtomicBoolean firstRequestSeen = new AtomicBoolean();
+    private volatile TokenBucket uploadBucket; // Per-neighbor bandwidth limits, null when there are none
+    private volatile TokenBucket downloadBucket;
+    private final AtomicBoolean refillScheduled = new AtomicBoolean(); // The download limit postponed a window fill
 
-    public Neighbor(int peerID, Socket socket) {
+    public Neighbor(int peerID, Socket socket, BufferPool bufferPool) {
         this.peerID = peerID;
         this.socket = socket;
         this.isChoked = true; // Default already choked
         this.isInterested = false; // default not interested
         this.pieces = new BitSet(); // Initialize bitset based on total known pieces
-        this.prevDownloadRate = 0; // Initialize download rate as 0 (never downloaded before)
-        this.requestedPieces = new HashSet<>();
+        this.requestedBlocks = ConcurrentHashMap.newKeySet(); // Touched by the reader thread and the timeout tasks
+        this.outboundQueue = new OutboundQueue(bufferPool);
+    }
+
+    public Neighbor(int peerID, NioConnection connection) {
+        this.peerID = peerID;
+        this.socket = connection.getChannel().socket();
+        this.connection = connection;
+        this.isChoked = true;
+        this.isInterested = false;
+        this.pieces = new BitSet();
+        this.requestedBlocks = ConcurrentHashMap.newKeySet();
+        this.outboundQueue = connection.getOutboundQueue(); // The handshake already went through it
     }
 
     // Getters and Settings
@@ -35,6 +64,14 @@ public class Neighbor {
         return socket;
     }
 
+    public NioConnection getConnection() {
+        return connection;
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
     public boolean isChoked() {
         return isChoked;
     }
@@ -43,6 +80,80 @@ public class Neighbor {
         this.isChoked = isChoked;
     }
 
+    public void setFeatures(byte features) {
+        this.features = features;
+    }
+
+    // Older peers only understand plain HAVE messages
+    public boolean supportsHaveMulti() {
+        return (features & HandshakeMessage.FEATURE_HAVE_MULTI) != 0;
+    }
+
+    // Whether THIS PEER already has the piece, without copying its bitfield
+    public boolean hasPiece(int pieceIndex) {
+        synchronized (pieces) {
+            return pieces.get(pieceIndex);
+        }
+    }
+
+    public void setOpenedAt(long openedAt) {
+        this.openedAt = openedAt;
+    }
+
+    // Nanoseconds from setting up the connection to THIS PEER's first REQUEST, or -1 after the first call
+    public long markFirstRequest() {
+        return firstRequestSeen.compareAndSet(false, true) ? System.nanoTime() - openedAt : -1;
+    }
+
+    public void setBandwidthBuckets(TokenBucket uploadBucket, TokenBucket downloadBucket) {
+        this.uploadBucket = uploadBucket;
+        this.downloadBucket = downloadBucket;
+    }
+
+    public TokenBucket getUploadBucket() {
+        return uploadBucket;
+    }
+
+    public TokenBucket getDownloadBucket() {
+        return downloadBucket;
+    }
+
+    // Only the caller that gets true schedules the postponed fill, clearRefillScheduled when it runs
+    public boolean markRefillScheduled() {
+        return refillScheduled.compareAndSet(false, true);
+    }
+
+    public void clearRefillScheduled() {
+        refillScheduled.set(false);
+    }
+
+    // Returns true only the first time, whoever gets true sends (or skips sending) the manifest
+    public boolean markManifestExchanged() {
+        return manifestExchanged.compareAndSet(false, true);
+    }
+
+    public boolean isChokingUs() {
+        return isChokingUs;
+    }
+
+    public void setChokingUs(boolean isChokingUs) {
+        this.isChokingUs = isChokingUs;
+    }
+
+    public RequestWindow getRequestWindow() {
+        return requestWindow;
+    }
+
+    public void setRequestWindow(RequestWindow requestWindow) {
+        this.requestWindow = requestWindow;
+    }
+
+    // How many more REQUESTs fit into the window right now
+    public int getFreeRequestSlots() {
+        int windowSize = requestWindow != null ? requestWindow.getSize() : 1;
+        return windowSize - requestedBlocks.size();
+    }
+
     public boolean isInterested() {
         return isInterested;
     }
@@ -52,46 +163,136 @@ public class Neighbor {
     }
 
     public BitSet getPieces() {
-        return (BitSet) pieces.clone();
+        synchronized (pieces) {
+            return (BitSet) pieces.clone();
+        }
     }
 
-    public void updatePieces(BitSet newPieces) {
-        this.pieces.or(newPieces);
+    // Returns the pieces that weren't known before, so availability counts can be kept in sync
+    public BitSet updatePieces(BitSet newPieces) {
+        synchronized (pieces) {
+            BitSet added = (BitSet) newPieces.clone();
+            added.andNot(pieces);
+            this.pieces.or(newPieces);
+            return added;
+        }
     } // can't lose pieces (in our program)
 
-    public long getPrevDownloadRate() {
-        return prevDownloadRate;
+    // Returns false if the piece was already known
+    public boolean addPiece(int pieceIndex) {
+        synchronized (pieces) {
+            if (pieces.get(pieceIndex)) {
+                return false;
+            }
+            pieces.set(pieceIndex);
+            return true;
+        }
+    }
+
+    public void recordDownloaded(int bytes) {
+        download.record(bytes);
+        blocksDownloaded.increment();
+    }
+
+    public void recordUploaded(int bytes) {
+        upload.record(bytes);
+        blocksUploaded.increment();
     }
 
-    public void setPrevDownloadRate(long prevDownloadRate) {
-        this.prevDownloadRate = prevDownloadRate;
+    public void recordPieceCompleted() {
+        piecesCompleted.increment();
     }
 
-    public void addRequestedPiece(int pieceIndex) {
-        this.requestedPieces.add(pieceIndex);
+    public void recordRequestTimeout() {
+        requestTimeouts.increment();
     }
 
-    public void removeRequestedPiece(int pieceIndex) {
-        this.requestedPieces.remove(pieceIndex);
+    public long getBlocksDownloaded() {
+        return blocksDownloaded.sum();
     }
 
-    public boolean hasRequestedPiece(int pieceIndex) {
-        return this.requestedPieces.contains(pieceIndex);
+    public long getBlocksUploaded() {
+        return blocksUploaded.sum();
     }
 
-    public Set<Integer> getRequestedPieces() {
-        return requestedPieces;
+    public long getPiecesCompleted() {
+        return piecesCompleted.sum();
+    }
+
+    public long getRequestTimeouts() {
+        return requestTimeouts.sum();
+    }
+
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    // Smoothed rates in bytes per second, updated once per unchoking interval by updateRates
+    public double getDownloadRate() {
+        return download.getBytesPerSecond();
+    }
+
+    public double getUploadRate() {
+        return upload.getBytesPerSecond();
+    }
+
+    public long getBytesDownloaded() {
+        return download.getTotalBytes();
+    }
+
+    public long getBytesUploaded() {
+        return upload.getTotalBytes();
+    }
+
+    public void updateRates(double smoothing) {
+        download.sample(smoothing);
+        upload.sample(smoothing);
+    }
+
+    public TransferStats getTransferStats() {
+        return new TransferStats(peerID, getBytesDownloaded(), getBytesUploaded(), getDownloadRate(), getUploadRate());
+    }
+
+    // Requests are tracked per block, see PartialPiece.blockKey. Without BlockSize a block is the whole piece.
+    public void addRequestedBlock(long blockKey) {
+        this.requestedBlocks.add(blockKey);
+    }
+
+    // Returns false if the block wasn't requested from THIS PEER (anymore)
+    public boolean removeRequestedBlock(long blockKey) {
+        return this.requestedBlocks.remove(blockKey);
+    }
+
+    public boolean hasRequestedBlock(long blockKey) {
+        return this.requestedBlocks.contains(blockKey);
+    }
+
+    public Set<Long> getRequestedBlocks() {
+        return requestedBlocks;
     }
 
     // Methods to add, check, and remove request timeouts...
-    public void addRequestTimeoutTask(int pieceIndex, ScheduledFuture<?> timeoutTask) {
-        requestTimeoutTasks.put(pieceIndex, timeoutTask);
+    public void addRequestTimeoutTask(long blockKey, ScheduledFuture<?> timeoutTask) {
+        requestTimeoutTasks.put(blockKey, timeoutTask);
     }
 
-    public void cancelRequestTimeout(int pieceIndex) {
-        ScheduledFuture<?> timeoutTask = requestTimeoutTasks.remove(pieceIndex);
+    public void cancelRequestTimeout(long blockKey) {
+        ScheduledFuture<?> timeoutTask = requestTimeoutTasks.remove(blockKey);
         if (timeoutTask != null) {
-            timeoutTask.cancel(true); // Cancel the task and interrupt if running
+            timeoutTask.cancel(false); // The timeout task may be the one calling us, don't interrupt it
+        }
+    }
+
+    // Forget every outstanding request, e.g. because THIS PEER choked us and won't answer them anymore
+    public Set<Long> clearRequestedBlocks() {
+        Set<Long> dropped = Set.copyOf(requestedBlocks);
+        for (long blockKey : dropped) {
+            requestedBlocks.remove(blockKey);
+            cancelRequestTimeout(blockKey);
+            if (requestWindow != null) {
+                requestWindow.onRequestDropped(blockKey);
+            }
         }
+        return dropped;
     }
 }
\ No newline at end of file
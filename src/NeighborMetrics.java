@@ -0,0 +1,120 @@
+import java.util.Map;
+
+// Read-only view of a neighbor's counters, registered as an MBean while the neighbor is connected.
+// Nothing is stored here, every getter reads the neighbor's own lock-free counters.
+public class NeighborMetrics implements NeighborMetricsMBean {
+    private final Neighbor neighbor;
+
+    public NeighborMetrics(Neighbor neighbor) {
+        this.neighbor = neighbor;
+    }
+
+    Neighbor getNeighbor() {
+        return neighbor;
+    }
+
+    @Override
+    public int getPeerID() {
+        return neighbor.getPeerID();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return neighbor.getBytesDownloaded();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return neighbor.getBytesUploaded();
+    }
+
+    @Override
+    public double getDownloadRate() {
+        return neighbor.getDownloadRate();
+    }
+
+    @Override
+    public double getUploadRate() {
+        return neighbor.getUploadRate();
+    }
+
+    @Override
+    public long getBlocksDownloaded() {
+        return neighbor.getBlocksDownloaded();
+    }
+
+    @Override
+    public long getBlocksUploaded() {
+        return neighbor.getBlocksUploaded();
+    }
+
+    @Override
+    public long getPiecesCompleted() {
+        return neighbor.getPiecesCompleted();
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return neighbor.getRequestedBlocks().size();
+    }
+
+    @Override
+    public long getRequestTimeouts() {
+        return neighbor.getRequestTimeouts();
+    }
+
+    @Override
+    public double getRequestLatencyMeanMillis() {
+        return neighbor.getRequestLatency().getMeanMillis();
+    }
+
+    @Override
+    public double getRequestLatencyP50Millis() {
+        return neighbor.getRequestLatency().getPercentileMillis(50);
+    }
+
+    @Override
+    public double getRequestLatencyP99Millis() {
+        return neighbor.getRequestLatency().getPercentileMillis(99);
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        return neighbor.getOutboundQueue().size();
+    }
+
+    @Override
+    public boolean isChoked() {
+        return neighbor.isChoked();
+    }
+
+    @Override
+    public boolean isChokingUs() {
+        return neighbor.isChokingUs();
+    }
+
+    @Override
+    public boolean isInterested() {
+        return neighbor.isInterested();
+    }
+
+    // Same values as the MBean attributes, keyed by attribute name
+    public void snapshot(Map<String, Object> values) {
+        values.put("BytesDownloaded", getBytesDownloaded());
+        values.put("BytesUploaded", getBytesUploaded());
+        values.put("DownloadRate", getDownloadRate());
+        values.put("UploadRate", getUploadRate());
+        values.put("BlocksDownloaded", getBlocksDownloaded());
+        values.put("BlocksUploaded", getBlocksUploaded());
+        values.put("PiecesCompleted", getPiecesCompleted());
+        values.put("RequestsInFlight", getRequestsInFlight());
+        values.put("RequestTimeouts", getRequestTimeouts());
+        values.put("RequestLatencyMeanMillis", getRequestLatencyMeanMillis());
+        values.put("RequestLatencyP50Millis", getRequestLatencyP50Millis());
+        values.put("RequestLatencyP99Millis", getRequestLatencyP99Millis());
+        values.put("OutboundQueueDepth", getOutboundQueueDepth());
+        values.put("Choked", isChoked());
+        values.put("ChokingUs", isChokingUs());
+        values.put("Interested", isInterested());
+    }
+}
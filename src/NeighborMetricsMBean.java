@@ -0,0 +1,36 @@
+// JMX view of one neighbor, see NeighborMetrics
+public interface NeighborMetricsMBean {
+    int getPeerID();
+
+    long getBytesDownloaded();
+
+    long getBytesUploaded();
+
+    double getDownloadRate();
+
+    double getUploadRate();
+
+    long getBlocksDownloaded();
+
+    long getBlocksUploaded();
+
+    long getPiecesCompleted();
+
+    int getRequestsInFlight();
+
+    long getRequestTimeouts();
+
+    double getRequestLatencyMeanMillis();
+
+    double getRequestLatencyP50Millis();
+
+    double getRequestLatencyP99Millis();
+
+    int getOutboundQueueDepth();
+
+    boolean isChoked();
+
+    boolean isChokingUs();
+
+    boolean isInterested();
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+// The only thread that writes to a neighbor's socket on the blocking engine.
+// Every round it takes all waiting control frames plus at most one upload and sends them with one gathering write,
+// so a burst of HAVEs or REQUESTs costs one syscall, and control frames never wait behind more than one upload.
+// Control frames are pooled buffers (see Message.encode), they go back to the pool once written.
+// An upload over the upload limit is held back until its turn, control frames keep going out meanwhile.
+public class NeighborWriter implements Runnable {
+    private static final int MAX_COALESCED_BYTES = 64 * 1024;
+
+    private final Neighbor neighbor;
+    private final SocketChannel channel;
+    private final boolean zeroCopy;
+    private final BufferPool bufferPool;
+    private final ByteBuffer uploadHeader;
+
+    public NeighborWriter(Neighbor neighbor, SocketChannel channel, boolean zeroCopy, BufferPool bufferPool) {
+        this.neighbor = neighbor;
+        this.channel = channel;
+        this.zeroCopy = zeroCopy;
+        this.bufferPool = bufferPool;
+        this.uploadHeader = bufferPool.acquire(PieceUpload.MAX_HEADER_LENGTH);
+    }
+
+    @Override
+    public void run() {
+        OutboundQueue queue = neighbor.getOutboundQueue();
+        List<ByteBuffer> frames = new ArrayList<>();
+
+        try {
+            while (queue.awaitWork()) {
+                queue.drainControl(frames, MAX_COALESCED_BYTES);
+
+                PieceUpload upload = queue.pollUpload();
+                if (upload != null) {
+                    long wait = upload.reserveBandwidth();
+                    if (wait > 0 && !awaitUploadTurn(queue, frames, System.nanoTime() + wait)) {
+                        break; // Closed while the upload waited, it is dropped with the rest of the queue
+                    }
+                }
+                int controlFrames = frames.size();
+
+                if (upload == null) {
+                    writeFully(frames);
+                } else if (zeroCopy && upload.supportsTransfer()) {
+                    // Control frames and the header in one write, then the content straight from the file
+                    frames.add(header(upload));
+                    writeFully(frames);
+                    upload.transferContent(channel);
+                    upload.onSent();
+                } else {
+                    // Header and a slice of the content, gathered into one write
+                    frames.add(header(upload));
+                    frames.add(upload.content());
+                    writeFully(frames);
+                    upload.onSent();
+                }
+
+                for (int i = 0; i < controlFrames; i++) {
+                    bufferPool.release(frames.get(i));
+                }
+                frames.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The reader notices the closed socket and cleans up the neighbor
+            Log.info("Lost connection with peer " + neighbor.getPeerID() + " while sending: " + e.getMessage());
+            queue.close();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Log.warn("Failed to close connection", ex);
+            }
+        } finally {
+            bufferPool.release(uploadHeader);
+        }
+    }
+
+    // Sends control frames until sendAt. False if the queue was closed meanwhile, the upload must not be sent then.
+    private boolean awaitUploadTurn(OutboundQueue queue, List<ByteBuffer> frames, long sendAt) throws IOException, InterruptedException {
+        writeControl(frames);
+        while (queue.awaitControl(sendAt)) {
+            queue.drainControl(frames, MAX_COALESCED_BYTES);
+            writeControl(frames);
+        }
+        return !queue.isClosed();
+    }
+
+    private void writeControl(List<ByteBuffer> frames) throws IOException {
+        writeFully(frames);
+        for (ByteBuffer frame : frames) {
+            bufferPool.release(frame);
+        }
+        frames.clear();
+    }
+
+    private ByteBuffer header(PieceUpload upload) {
+        uploadHeader.clear();
+        upload.putHeader(uploadHeader);
+        uploadHeader.flip();
+        return uploadHeader;
+    }
+
+    private void writeFully(List<ByteBuffer> frames) throws IOException {
+        if (frames.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = frames.toArray(new ByteBuffer[0]);
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One non-blocking connection owned by a NioEventLoop.
+// Incoming bytes are parsed incrementally (handshake first, then length prefixed messages),
+// outgoing frames are queued by any thread in an OutboundQueue and written by the event loop when the socket is writable.
+public class NioConnection {
+    private static final int MAX_COALESCED_BYTES = 64 * 1024;
+    private static final int INITIAL_READ_BUFFER = 64 * 1024;
+
+    private final NioEngine engine;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final boolean outbound; // We opened the connection, so we send the first handshake
+    private SelectionKey key;
+
+    private int peerID = -1;
+    private byte remoteFeatures; // Feature bits from the other side's handshake
+    private boolean handshakeDone = false;
+    private boolean closed = false; // Only touched by the event loop
+    private PeerInfo remotePeer; // Outbound only, so a failed connect can be retried
+    private int attempt;
+    private long connectStart;
+    private long openedAt; // When the TCP connection was accepted or connected, for the first-request latency
+    private BitSet advertisedPieces; // What the BITFIELD queued right behind our handshake announced, null if none was
+    private final BufferPool bufferPool;
+    private ByteBuffer readBuffer; // Pooled, received messages are views into it while they are dispatched
+
+    private final OutboundQueue outboundQueue;
+    private final AtomicBoolean writePending = new AtomicBoolean(false);
+    private final List<ByteBuffer> coalesced = new ArrayList<>(); // Only touched by the event loop
+    private ByteBuffer[] currentWrite; // Control frames or one upload that didn't fit into the socket buffer yet
+    private PieceUpload currentUpload;
+    private PieceUpload throttledUpload; // Taken from the queue but over the upload limit until throttledUntil
+    private long throttledUntil;
+    private final ByteBuffer uploadHeader;
+
+    public NioConnection(NioEngine engine, NioEventLoop loop, SocketChannel channel, boolean outbound) {
+        this.engine = engine;
+        this.loop = loop;
+        this.channel = channel;
+        this.outbound = outbound;
+        this.bufferPool = engine.getBufferPool();
+        this.outboundQueue = new OutboundQueue(bufferPool);
+        this.outboundQueue.setOnWork(this::requestWrite);
+        this.readBuffer = bufferPool.acquire(INITIAL_READ_BUFFER);
+        this.readBuffer.clear();
+        this.uploadHeader = bufferPool.acquire(PieceUpload.MAX_HEADER_LENGTH);
+        this.openedAt = System.nanoTime();
+    }
+
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public byte getRemoteFeatures() {
+        return remoteFeatures;
+    }
+
+    public int getPeerID() {
+        return peerID;
+    }
+
+    boolean isOutbound() {
+        return outbound;
+    }
+
+    NioEventLoop getLoop() {
+        return loop;
+    }
+
+    boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void setConnectAttempt(PeerInfo remotePeer, int attempt, long connectStart) {
+        this.remotePeer = remotePeer;
+        this.attempt = attempt;
+        this.connectStart = connectStart;
+    }
+
+    PeerInfo getRemotePeer() {
+        return remotePeer;
+    }
+
+    int getAttempt() {
+        return attempt;
+    }
+
+    long getConnectStart() {
+        return connectStart;
+    }
+
+    long getOpenedAt() {
+        return openedAt;
+    }
+
+    BitSet getAdvertisedPieces() {
+        return advertisedPieces;
+    }
+
+    // Both sides' handshakes are queued as control frames, so with CombinedHandshake the BITFIELD queued
+    // right after it is coalesced into the same write
+    private void queueHandshake() {
+        outboundQueue.addControl(ByteBuffer.wrap(HandshakeMessage.createHandshakeMessage(engine.getLocalPeerID())));
+        advertisedPieces = engine.queueInitialBitfield(outboundQueue);
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // Called by the queue from any thread whenever something was added
+    private void requestWrite() {
+        if (writePending.compareAndSet(false, true)) {
+            loop.execute(this::enableWrite);
+        }
+    }
+
+    private void enableWrite() {
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Called by the event loop once a non-blocking connect has finished
+    void onConnected() throws IOException {
+        channel.finishConnect();
+        key.interestOps(SelectionKey.OP_READ);
+        openedAt = System.nanoTime();
+        engine.onConnected(this);
+        queueHandshake();
+    }
+
+    void onWritable() throws IOException {
+        while (currentWrite != null || nextWrite()) {
+            channel.write(currentWrite); // Gathering write
+            if (currentWrite[currentWrite.length - 1].hasRemaining()) {
+                return; // Socket buffer is full, wait for the next OP_WRITE
+            }
+            if (currentUpload != null) {
+                currentUpload.onSent();
+                currentUpload = null;
+            } else {
+                for (ByteBuffer frame : currentWrite) {
+                    bufferPool.release(frame); // Control frames were encoded into pooled buffers
+                }
+            }
+            currentWrite = null;
+        }
+
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        writePending.set(false);
+
+        // A frame may have been queued after the queue looked empty but before writePending was cleared
+        if (hasWritableWork() && writePending.compareAndSet(false, true)) {
+            enableWrite();
+        }
+    }
+
+    // A held back upload doesn't count, resumeWrites enables writing again once it may go
+    private boolean hasWritableWork() {
+        return throttledUpload == null ? !outboundQueue.isEmpty() : outboundQueue.hasControl();
+    }
+
+    // Runs on the loop once a held back upload may be sent
+    void resumeWrites() {
+        if (!closed) {
+            writePending.set(true);
+            enableWrite();
+        }
+    }
+
+    // All waiting control frames go out together. Only when there are none the next upload is started,
+    // that way control frames wait for at most the upload that is already being written.
+    private boolean nextWrite() throws IOException {
+        outboundQueue.drainControl(coalesced, MAX_COALESCED_BYTES);
+        if (!coalesced.isEmpty()) {
+            currentWrite = coalesced.toArray(new ByteBuffer[0]);
+            coalesced.clear();
+            return true;
+        }
+
+        PieceUpload upload = throttledUpload;
+        if (upload == null) {
+            upload = outboundQueue.pollUpload();
+            if (upload == null) {
+                return false;
+            }
+            long wait = upload.reserveBandwidth();
+            if (wait > 0) {
+                throttledUpload = upload;
+                throttledUntil = System.nanoTime() + wait;
+                engine.resumeWritesAfter(this, wait);
+                return false;
+            }
+        } else if (System.nanoTime() - throttledUntil < 0) {
+            return false; // Not its turn yet
+        } else {
+            throttledUpload = null;
+        }
+        uploadHeader.clear();
+        upload.putHeader(uploadHeader);
+        uploadHeader.flip();
+        currentWrite = new ByteBuffer[]{uploadHeader, upload.content()};
+        currentUpload = upload;
+        return true;
+    }
+
+    void onReadable() throws IOException {
+        if (channel.read(readBuffer) == -1) {
+            throw new IOException("Connection closed by peer");
+        }
+        readBuffer.flip();
+
+        if (!handshakeDone) {
+            if (readBuffer.remaining() < HandshakeMessage.LENGTH) {
+                readBuffer.compact();
+                return;
+            }
+            byte[] handshake = new byte[HandshakeMessage.LENGTH];
+            readBuffer.get(handshake);
+
+            peerID = HandshakeMessage.validateHandshake(handshake, engine.getKnownPeers());
+            if (peerID == -1) {
+                throw new IOException("Invalid handshake received");
+            }
+            remoteFeatures = HandshakeMessage.featuresOf(handshake);
+            if (!outbound) {
+                // Send a handshake message back to complete the handshake exchange
+                queueHandshake();
+            }
+            handshakeDone = true;
+            engine.onHandshake(this);
+        }
+
+        // Dispatch every complete frame that is in the buffer, the payloads are slices of readBuffer
+        while (readBuffer.remaining() >= 4) {
+            int frameLength = Message.frameLength(readBuffer, Message.MAX_MESSAGE_LENGTH);
+            if (readBuffer.remaining() < frameLength) {
+                if (readBuffer.capacity() < frameLength) {
+                    // Frame doesn't fit, grow the buffer so the rest of it can be read
+                    ByteBuffer bigger = bufferPool.acquire(frameLength);
+                    bigger.clear();
+                    bigger.put(readBuffer);
+                    bufferPool.release(readBuffer);
+                    readBuffer = bigger;
+                    return;
+                }
+                break;
+            }
+            engine.dispatch(this, Message.decode(readBuffer, Message.MAX_MESSAGE_LENGTH));
+        }
+        readBuffer.compact();
+    }
+
+    // Only the first call does anything, the pooled buffers must not be released twice
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        outboundQueue.close();
+        if (currentWrite != null && currentUpload == null) {
+            for (ByteBuffer frame : currentWrite) {
+                bufferPool.release(frame); // Control frames that were only partly written
+            }
+            currentWrite = null;
+        }
+        bufferPool.release(readBuffer);
+        bufferPool.release(uploadHeader);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Failed to close connection", e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Selector based networking engine. A fixed number of event loops serve every neighbor,
+// so the thread count stays the same no matter how many peers we are connected to.
+public class NioEngine {
+    private final peerProcess peer;
+    private final int localPeerID;
+    private final Map<Integer, PeerInfo> knownPeers; // PeerInfo.cfg by peer ID, handshakes are checked against it
+    private final NioEventLoop[] loops;
+    private final BufferPool bufferPool;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ConnectPolicy connectPolicy;
+    private final ScheduledExecutorService scheduler; // Connect/handshake deadlines and retries, the loops never sleep
+
+    public NioEngine(peerProcess peer, int localPeerID, Map<Integer, PeerInfo> knownPeers, int numLoops, BufferPool bufferPool,
+                     ConnectPolicy connectPolicy, ScheduledExecutorService scheduler) throws IOException {
+        this.peer = peer;
+        this.bufferPool = bufferPool;
+        this.connectPolicy = connectPolicy;
+        this.scheduler = scheduler;
+        this.localPeerID = localPeerID;
+        this.knownPeers = knownPeers;
+        this.loops = new NioEventLoop[Math.max(1, numLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this, "peer-" + localPeerID + "-nio-loop-" + i);
+        }
+    }
+
+    public int getLocalPeerID() {
+        return localPeerID;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public Map<Integer, PeerInfo> getKnownPeers() {
+        return knownPeers;
+    }
+
+    BitSet queueInitialBitfield(OutboundQueue queue) {
+        return peer.queueInitialBitfield(queue);
+    }
+
+    public void start(int listeningPort) throws IOException {
+        for (NioEventLoop loop : loops) {
+            loop.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(listeningPort));
+        serverChannel.configureBlocking(false);
+        loops[0].register(serverChannel, SelectionKey.OP_ACCEPT, null);
+        Log.info("Listening for incoming connections on port " + listeningPort + " (" + loops.length + " NIO event loops)");
+    }
+
+    // Stops the loops, each one closes its channels on the way out. Returns once they are done.
+    public void shutdown() {
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        for (NioEventLoop loop : loops) {
+            loop.awaitTermination(5000);
+        }
+    }
+
+    private NioEventLoop pickLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    public void connect(PeerInfo remotePeer) {
+        connect(remotePeer, 1, System.nanoTime());
+    }
+
+    private void connect(PeerInfo remotePeer, int attempt, long startNanos) {
+        SocketChannel channel = null;
+        try {
+            Log.info("Attempting to connect to peer " + remotePeer.peerID + " at " + remotePeer.hostName + ":" + remotePeer.listeningPort);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(new InetSocketAddress(remotePeer.hostName, remotePeer.listeningPort));
+
+            NioEventLoop loop = pickLoop();
+            NioConnection connection = new NioConnection(this, loop, channel, true);
+            connection.setConnectAttempt(remotePeer, attempt, startNanos);
+            if (connected) {
+                // Finished right away (can happen over loopback), OP_CONNECT would never fire for it
+                loop.register(channel, 0, connection);
+                loop.execute(() -> {
+                    if (connection.isClosed()) {
+                        return;
+                    }
+                    try {
+                        connection.onConnected();
+                    } catch (IOException | RuntimeException e) {
+                        closeConnection(connection, String.valueOf(e.getMessage()));
+                    }
+                });
+                return;
+            }
+            loop.register(channel, SelectionKey.OP_CONNECT, connection);
+            scheduleDeadline(connection, connectPolicy.getConnectTimeout(), "Connect");
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    Log.warn("Failed to close connection", ex);
+                }
+            }
+            retryConnect(remotePeer, attempt, startNanos, e.getMessage());
+        }
+    }
+
+    private void retryConnect(PeerInfo remotePeer, int attempt, long startNanos, String reason) {
+        if (!connectPolicy.canRetry(attempt)) {
+            Log.warn("Could not connect to peer " + remotePeer.peerID + ":" + remotePeer.listeningPort + " after " + attempt + " attempts: " + reason);
+            peer.onOutboundConnectDone(remotePeer.peerID, false, attempt, startNanos);
+            return;
+        }
+        long delay = connectPolicy.backoffBefore(attempt + 1);
+        Log.info("Could not connect to peer " + remotePeer.peerID + " (attempt " + attempt + "): " + reason + ", retrying in " + delay + " ms");
+        scheduler.schedule(() -> connect(remotePeer, attempt + 1, startNanos), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Closes the connection if it still hasn't got past the given phase when the deadline is up
+    private void scheduleDeadline(NioConnection connection, int timeoutMillis, String phase) {
+        scheduler.schedule(() -> connection.getLoop().execute(() -> {
+            boolean late = phase.equals("Connect") ? !connection.getChannel().isConnected() : !connection.isHandshakeDone();
+            if (late && !connection.isClosed()) {
+                closeConnection(connection, phase + " timed out after " + timeoutMillis + " ms");
+            }
+        }), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // The upload limit holds the connection's next upload back, its loop comes back for it after the wait
+    void resumeWritesAfter(NioConnection connection, long waitNanos) {
+        scheduler.schedule(() -> connection.getLoop().execute(connection::resumeWrites), waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // The TCP connect is done, now the handshake has to come back in time
+    void onConnected(NioConnection connection) {
+        scheduleDeadline(connection, connectPolicy.getHandshakeTimeout(), "Handshake");
+    }
+
+    // Called on loop 0 whenever the server channel has a pending connection
+    void accept(ServerSocketChannel serverChannel) {
+        try {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                return;
+            }
+            Log.debug(() -> "Connection established with peer: " + channel.socket().getRemoteSocketAddress());
+            channel.configureBlocking(false);
+
+            NioEventLoop loop = pickLoop();
+            NioConnection connection = new NioConnection(this, loop, channel, false);
+            loop.register(channel, SelectionKey.OP_READ, connection);
+            scheduleDeadline(connection, connectPolicy.getHandshakeTimeout(), "Handshake");
+        } catch (IOException e) {
+            Log.warn("Failed to accept connection", e);
+        }
+    }
+
+    void onHandshake(NioConnection connection) throws IOException {
+        Log.info("Handshake exchange successful with peer " + connection.getPeerID());
+        Neighbor neighbor = new Neighbor(connection.getPeerID(), connection);
+        neighbor.setFeatures(connection.getRemoteFeatures());
+        neighbor.setOpenedAt(connection.getOpenedAt());
+        peer.onConnectionEstablished(neighbor, connection.getAdvertisedPieces());
+        if (connection.isOutbound()) {
+            peer.onOutboundConnectDone(connection.getPeerID(), true, connection.getAttempt(), connection.getConnectStart());
+        } else {
+            peer.onInboundConnection(connection.getPeerID());
+        }
+    }
+
+    void dispatch(NioConnection connection, Message message) throws IOException {
+        peer.dispatchMessage(connection.getPeerID(), message);
+    }
+
+    // Runs on the connection's loop. An outbound connection that never got through the handshake is retried.
+    void closeConnection(NioConnection connection, String reason) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.close();
+        if (connection.isHandshakeDone()) {
+            peer.onConnectionLost(connection.getPeerID());
+        } else if (connection.isOutbound()) {
+            retryConnect(connection.getRemotePeer(), connection.getAttempt(), connection.getConnectStart(), reason);
+        } else {
+            Log.info("Dropped incoming connection before the handshake: " + reason);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// A single selector thread. Every connection is pinned to one loop, so all of its I/O happens on that thread.
+public class NioEventLoop implements Runnable {
+    private final NioEngine engine;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(NioEngine engine, String name) throws IOException {
+        this.engine = engine;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void awaitTermination(long millis) {
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        try {
+            thread.join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs the task on the loop thread, other threads must never touch the selector or keys directly
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    void register(SelectableChannel channel, int ops, Object attachment) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, ops, attachment);
+                if (attachment instanceof NioConnection) {
+                    ((NioConnection) attachment).setKey(key);
+                }
+            } catch (ClosedChannelException e) {
+                Log.warn("Channel closed before it could be registered.");
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            } catch (IOException e) {
+                Log.warn("Event loop select failed", e);
+            }
+        }
+
+        try {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            Log.warn("Failed to close event loop", e);
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            engine.accept((ServerSocketChannel) key.channel());
+            return;
+        }
+
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                connection.onConnected();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+        } catch (IOException | RuntimeException e) {
+            if (connection.isHandshakeDone()) {
+                Log.info("Lost connection with peer " + connection.getPeerID() + ": " + e.getMessage());
+            }
+            engine.closeConnection(connection, String.valueOf(e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Everything waiting to be sent to one neighbor. Any thread may add to it, only the neighbor's writer takes from it
+// (a NeighborWriter on the blocking engine, the event loop on the NIO engine).
+// Control frames (HAVE, CHOKE/UNCHOKE, INTERESTED, REQUEST, CANCEL, ...) and PIECE/BLOCK uploads are kept apart:
+// the writer sends all waiting control frames first, so they overtake uploads that haven't started yet.
+public class OutboundQueue {
+    private final BufferPool bufferPool; // Control frames are pooled buffers, whatever is never sent goes back here
+    private final ReentrantLock lock = new ReentrantLock(); // Not synchronized, a waiting virtual thread mustn't pin its carrier
+    private final Condition hasWork = lock.newCondition();
+    private final ArrayDeque<ByteBuffer> controlFrames = new ArrayDeque<>();
+    private final ArrayDeque<PieceUpload> uploads = new ArrayDeque<>();
+    private boolean closed = false;
+    private volatile Runnable onWork; // Wakes up a writer that doesn't wait on hasWork (the NIO event loop)
+
+    public OutboundQueue(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public void setOnWork(Runnable onWork) {
+        this.onWork = onWork;
+    }
+
+    // Returns false if the connection is gone
+    public boolean addControl(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            controlFrames.add(frame);
+            hasWork.signal();
+        } finally {
+            lock.unlock();
+        }
+        notifyWriter();
+        return true;
+    }
+
+    public boolean addUpload(PieceUpload upload) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            uploads.add(upload);
+            hasWork.signal();
+        } finally {
+            lock.unlock();
+        }
+        notifyWriter();
+        return true;
+    }
+
+    // CANCEL received: drops the upload if the writer hasn't started on it yet
+    public boolean cancelUpload(int pieceIndex, int offset) {
+        lock.lock();
+        try {
+            return uploads.removeIf(upload -> upload.getPieceIndex() == pieceIndex && upload.getOffset() == offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // We choked the neighbor, it has forgotten its requests and won't expect the answers anymore
+    public int clearUploads() {
+        lock.lock();
+        try {
+            int dropped = uploads.size();
+            uploads.clear();
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves waiting control frames into frames, at least one if there is one, more as long as they fit into maxBytes
+    public void drainControl(List<ByteBuffer> frames, int maxBytes) {
+        lock.lock();
+        try {
+            int bytes = 0;
+            ByteBuffer frame;
+            while ((frame = controlFrames.peek()) != null) {
+                bytes += frame.remaining();
+                if (bytes > maxBytes && !frames.isEmpty()) {
+                    break;
+                }
+                frames.add(controlFrames.poll());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public PieceUpload pollUpload() {
+        lock.lock();
+        try {
+            return uploads.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Frames and uploads waiting, for monitoring
+    public int size() {
+        lock.lock();
+        try {
+            return controlFrames.size() + uploads.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasControl() {
+        lock.lock();
+        try {
+            return !controlFrames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until there are control frames or the deadline (System.nanoTime) has passed. Returns false once the
+    // deadline is reached or the queue is closed, so the writer can keep sending control frames while an upload waits.
+    public boolean awaitControl(long deadline) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining;
+            while (!closed && controlFrames.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                hasWork.awaitNanos(remaining);
+            }
+            return !closed && !controlFrames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return controlFrames.isEmpty() && uploads.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until there is something to send. Returns false once the queue is closed.
+    public boolean awaitWork() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && controlFrames.isEmpty() && uploads.isEmpty()) {
+                hasWork.await();
+            }
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Connection lost, whatever is still queued is thrown away
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (ByteBuffer frame : controlFrames) {
+                bufferPool.release(frame);
+            }
+            controlFrames.clear();
+            uploads.clear();
+            hasWork.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void notifyWriter() {
+        Runnable callback = onWork;
+        if (callback != null) {
+            callback.run();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.BitSet;
+
+// A piece we are currently downloading, split into fixed size blocks.
+// Blocks are handed out one at a time, so the blocks of one piece can be requested from several neighbors in parallel.
+// Without BlockSize in Common.cfg a piece is a single block.
+public class PartialPiece {
+    private final int pieceIndex;
+    private final int pieceLength;
+    private final int blockSize;
+    private final int numBlocks;
+    private final BitSet requested; // Blocks that are requested from some neighbor right now
+    private final BitSet received; // Blocks some neighbor delivered, claimed before they are written
+    private final BitSet written; // Received blocks that are in the piece store
+    private final BitSet duplicated; // Blocks endgame requested from more than one neighbor
+
+    public PartialPiece(int pieceIndex, int pieceLength, int blockSize) {
+        this.pieceIndex = pieceIndex;
+        this.pieceLength = pieceLength;
+        this.blockSize = Math.min(blockSize, pieceLength);
+        this.numBlocks = Math.max(1, (pieceLength + this.blockSize - 1) / this.blockSize);
+        this.requested = new BitSet(numBlocks);
+        this.received = new BitSet(numBlocks);
+        this.written = new BitSet(numBlocks);
+        this.duplicated = new BitSet(numBlocks);
+    }
+
+    // A request is identified by piece index and byte offset inside the piece
+    public static long blockKey(int pieceIndex, int offset) {
+        return ((long) pieceIndex << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    public static int pieceOf(long blockKey) {
+        return (int) (blockKey >>> 32);
+    }
+
+    public static int offsetOf(long blockKey) {
+        return (int) blockKey;
+    }
+
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public boolean isWholePiece() {
+        return numBlocks == 1;
+    }
+
+    public int blockOffset(int blockIndex) {
+        return blockIndex * blockSize;
+    }
+
+    public int blockLength(int blockIndex) {
+        return Math.min(blockSize, pieceLength - blockOffset(blockIndex));
+    }
+
+    // Block index for an offset/length pair, -1 if it doesn't match one of our blocks
+    public int blockIndexOf(int offset, int length) {
+        if (offset < 0 || offset % blockSize != 0) {
+            return -1;
+        }
+        int blockIndex = offset / blockSize;
+        if (blockIndex >= numBlocks || blockLength(blockIndex) != length) {
+            return -1;
+        }
+        return blockIndex;
+    }
+
+    // Next block nobody is fetching yet, marked as requested. -1 if every block is taken.
+    public synchronized int claimNextBlock() {
+        for (int blockIndex = 0; blockIndex < numBlocks; blockIndex++) {
+            if (!requested.get(blockIndex) && !received.get(blockIndex)) {
+                requested.set(blockIndex);
+                return blockIndex;
+            }
+        }
+        return -1;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    // Endgame: the block is requested again even if another neighbor is already fetching it
+    public synchronized boolean claimDuplicate(int blockIndex) {
+        if (received.get(blockIndex)) {
+            return false;
+        }
+        if (requested.get(blockIndex)) {
+            duplicated.set(blockIndex);
+        }
+        requested.set(blockIndex);
+        return true;
+    }
+
+    // Whether the block was requested more than once, only the first caller gets true
+    public synchronized boolean takeDuplicated(int blockIndex) {
+        boolean wasDuplicated = duplicated.get(blockIndex);
+        duplicated.clear(blockIndex);
+        return wasDuplicated;
+    }
+
+    // Request timed out or the neighbor went away, someone else may fetch the block
+    public synchronized void releaseBlock(int blockIndex) {
+        requested.clear(blockIndex);
+    }
+
+    // Claims a delivered block for writing. False if another copy of it was delivered already, that one is dropped.
+    public synchronized boolean tryReceive(int blockIndex) {
+        if (received.get(blockIndex)) {
+            return false;
+        }
+        received.set(blockIndex);
+        requested.clear(blockIndex);
+        return true;
+    }
+
+    // Writing a claimed block failed, it has to be fetched again
+    public synchronized void abandonReceive(int blockIndex) {
+        received.clear(blockIndex);
+    }
+
+    // The claimed block is in the piece store. Returns true only for the call that completes the piece.
+    public synchronized boolean markWritten(int blockIndex) {
+        written.set(blockIndex);
+        return written.cardinality() == numBlocks;
+    }
+}
@@ -0,0 +1,355 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters for the whole peer, published as the MBean P2PFileSharing:type=Peer,id=<peerID> next to one
+// P2PFileSharing:type=Neighbor MBean per connected neighbor, and written to a snapshot file.
+// The message hot paths only add to LongAdders and latency histograms. Byte, block and timeout totals are the
+// connected neighbors' own counters plus what disconnected neighbors had when they left, so they cost nothing extra.
+public class PeerMetrics implements PeerMetricsMBean {
+    private static final String DOMAIN = "P2PFileSharing";
+
+    private final int peerID;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong firstPieceNanos = new AtomicLong(); // 0 until the first piece is verified
+    private final AtomicLong completionNanos = new AtomicLong(); // 0 until the download is complete
+    private final Map<Integer, NeighborMetrics> neighbors = new ConcurrentHashMap<>();
+    private volatile MBeanServer mbeanServer; // Null unless JMX is on
+
+    private final LongAdder retiredBytesDownloaded = new LongAdder();
+    private final LongAdder retiredBytesUploaded = new LongAdder();
+    private final LongAdder retiredBlocksDownloaded = new LongAdder();
+    private final LongAdder retiredBlocksUploaded = new LongAdder();
+    private final LongAdder retiredRequestTimeouts = new LongAdder();
+
+    private final LongAdder piecesCompleted = new LongAdder();
+    private final LongAdder chokesSent = new LongAdder();
+    private final LongAdder unchokesSent = new LongAdder();
+    private final LongAdder chokesReceived = new LongAdder();
+    private final LongAdder unchokesReceived = new LongAdder();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+
+    public PeerMetrics(int peerID) {
+        this.peerID = peerID;
+    }
+
+    public void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, peerName());
+            mbeanServer = server;
+        } catch (JMException e) {
+            Log.warn("Failed to register the metrics MBean", e);
+        }
+    }
+
+    // The peer's MBean and those of its neighbors, when the peer is shut down
+    public void unregisterMBeans() {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        mbeanServer = null;
+        try {
+            for (int neighborID : neighbors.keySet()) {
+                ObjectName name = neighborName(neighborID);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            }
+            server.unregisterMBean(peerName());
+        } catch (JMException e) {
+            Log.warn("Failed to unregister the metrics MBeans", e);
+        }
+    }
+
+    private ObjectName peerName() throws JMException {
+        return new ObjectName(DOMAIN + ":type=Peer,id=" + peerID);
+    }
+
+    private ObjectName neighborName(int neighborID) throws JMException {
+        return new ObjectName(DOMAIN + ":type=Neighbor,id=" + peerID + ",neighbor=" + neighborID);
+    }
+
+    public void onNeighborAdded(Neighbor neighbor) {
+        NeighborMetrics metrics = new NeighborMetrics(neighbor);
+        neighbors.put(neighbor.getPeerID(), metrics);
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName name = neighborName(neighbor.getPeerID());
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name); // Left over from an earlier connection to the same peer
+            }
+            server.registerMBean(metrics, name);
+        } catch (JMException e) {
+            Log.warn("Failed to register the metrics MBean of peer " + neighbor.getPeerID(), e);
+        }
+    }
+
+    // Keeps the neighbor's totals, they still count for the peer after it is gone
+    public void onNeighborRemoved(Neighbor neighbor) {
+        NeighborMetrics metrics = neighbors.get(neighbor.getPeerID());
+        if (metrics == null || metrics.getNeighbor() != neighbor || !neighbors.remove(neighbor.getPeerID(), metrics)) {
+            return;
+        }
+        retiredBytesDownloaded.add(neighbor.getBytesDownloaded());
+        retiredBytesUploaded.add(neighbor.getBytesUploaded());
+        retiredBlocksDownloaded.add(neighbor.getBlocksDownloaded());
+        retiredBlocksUploaded.add(neighbor.getBlocksUploaded());
+        retiredRequestTimeouts.add(neighbor.getRequestTimeouts());
+
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName name = neighborName(neighbor.getPeerID());
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            Log.warn("Failed to unregister the metrics MBean of peer " + neighbor.getPeerID(), e);
+        }
+    }
+
+    public void recordRequestLatency(long nanos) {
+        requestLatency.record(nanos);
+    }
+
+    public void recordPieceCompleted() {
+        piecesCompleted.increment();
+        firstPieceNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    public void recordDownloadComplete() {
+        completionNanos.compareAndSet(0, System.nanoTime());
+    }
+
+    public void recordChokeSent() {
+        chokesSent.increment();
+    }
+
+    public void recordUnchokeSent() {
+        unchokesSent.increment();
+    }
+
+    public void recordChokeReceived() {
+        chokesReceived.increment();
+    }
+
+    public void recordUnchokeReceived() {
+        unchokesReceived.increment();
+    }
+
+    @Override
+    public int getPeerID() {
+        return peerID;
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+
+    @Override
+    public int getNeighborCount() {
+        return neighbors.size();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        long total = retiredBytesDownloaded.sum();
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getBytesDownloaded();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        long total = retiredBytesUploaded.sum();
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getBytesUploaded();
+        }
+        return total;
+    }
+
+    @Override
+    public double getDownloadRate() {
+        double total = 0;
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getDownloadRate();
+        }
+        return total;
+    }
+
+    @Override
+    public double getUploadRate() {
+        double total = 0;
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getUploadRate();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBlocksDownloaded() {
+        long total = retiredBlocksDownloaded.sum();
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getBlocksDownloaded();
+        }
+        return total;
+    }
+
+    @Override
+    public long getBlocksUploaded() {
+        long total = retiredBlocksUploaded.sum();
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getBlocksUploaded();
+        }
+        return total;
+    }
+
+    @Override
+    public long getPiecesCompleted() {
+        return piecesCompleted.sum();
+    }
+
+    @Override
+    public long getRequestTimeouts() {
+        long total = retiredRequestTimeouts.sum();
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getRequestTimeouts();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRequestLatencyCount() {
+        return requestLatency.getCount();
+    }
+
+    @Override
+    public double getRequestLatencyMeanMillis() {
+        return requestLatency.getMeanMillis();
+    }
+
+    @Override
+    public double getRequestLatencyP50Millis() {
+        return requestLatency.getPercentileMillis(50);
+    }
+
+    @Override
+    public double getRequestLatencyP90Millis() {
+        return requestLatency.getPercentileMillis(90);
+    }
+
+    @Override
+    public double getRequestLatencyP99Millis() {
+        return requestLatency.getPercentileMillis(99);
+    }
+
+    @Override
+    public int getOutboundQueueDepth() {
+        int total = 0;
+        for (NeighborMetrics metrics : neighbors.values()) {
+            total += metrics.getOutboundQueueDepth();
+        }
+        return total;
+    }
+
+    @Override
+    public long getChokesSent() {
+        return chokesSent.sum();
+    }
+
+    @Override
+    public long getUnchokesSent() {
+        return unchokesSent.sum();
+    }
+
+    @Override
+    public long getChokesReceived() {
+        return chokesReceived.sum();
+    }
+
+    @Override
+    public long getUnchokesReceived() {
+        return unchokesReceived.sum();
+    }
+
+    @Override
+    public long getTimeToFirstPieceMillis() {
+        long at = firstPieceNanos.get();
+        return at == 0 ? -1 : (at - startNanos) / 1_000_000;
+    }
+
+    @Override
+    public long getTimeToCompletionMillis() {
+        long at = completionNanos.get();
+        return at == 0 ? -1 : (at - startNanos) / 1_000_000;
+    }
+
+    // Same values as the MBean attributes, keyed by attribute name
+    public void snapshot(Map<String, Object> values) {
+        values.put("UptimeMillis", getUptimeMillis());
+        values.put("NeighborCount", getNeighborCount());
+        values.put("BytesDownloaded", getBytesDownloaded());
+        values.put("BytesUploaded", getBytesUploaded());
+        values.put("DownloadRate", getDownloadRate());
+        values.put("UploadRate", getUploadRate());
+        values.put("BlocksDownloaded", getBlocksDownloaded());
+        values.put("BlocksUploaded", getBlocksUploaded());
+        values.put("PiecesCompleted", getPiecesCompleted());
+        values.put("RequestTimeouts", getRequestTimeouts());
+        values.put("RequestLatencyCount", getRequestLatencyCount());
+        values.put("RequestLatencyMeanMillis", getRequestLatencyMeanMillis());
+        values.put("RequestLatencyP50Millis", getRequestLatencyP50Millis());
+        values.put("RequestLatencyP90Millis", getRequestLatencyP90Millis());
+        values.put("RequestLatencyP99Millis", getRequestLatencyP99Millis());
+        values.put("OutboundQueueDepth", getOutboundQueueDepth());
+        values.put("ChokesSent", getChokesSent());
+        values.put("UnchokesSent", getUnchokesSent());
+        values.put("ChokesReceived", getChokesReceived());
+        values.put("UnchokesReceived", getUnchokesReceived());
+        values.put("TimeToFirstPieceMillis", getTimeToFirstPieceMillis());
+        values.put("TimeToCompletionMillis", getTimeToCompletionMillis());
+    }
+
+    // key=value lines, peer.<attribute> and neighbor.<id>.<attribute>. Written to a temporary file first,
+    // so a reader never sees half a snapshot.
+    public void writeSnapshot(Path path) throws IOException {
+        StringBuilder out = new StringBuilder();
+        out.append("# Metrics of peer ").append(peerID).append(" at ").append(Instant.now()).append('\n');
+        Map<String, Object> values = new LinkedHashMap<>();
+        snapshot(values);
+        values.forEach((key, value) -> out.append("peer.").append(key).append('=').append(value).append('\n'));
+
+        for (NeighborMetrics metrics : new TreeMap<>(neighbors).values()) {
+            values.clear();
+            metrics.snapshot(values);
+            String prefix = "neighbor." + metrics.getPeerID() + ".";
+            values.forEach((key, value) -> out.append(prefix).append(key).append('=').append(value).append('\n'));
+        }
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, out.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,48 @@
+// JMX view of the whole peer, see PeerMetrics
+public interface PeerMetricsMBean {
+    int getPeerID();
+
+    long getUptimeMillis();
+
+    int getNeighborCount();
+
+    long getBytesDownloaded();
+
+    long getBytesUploaded();
+
+    double getDownloadRate();
+
+    double getUploadRate();
+
+    long getBlocksDownloaded();
+
+    long getBlocksUploaded();
+
+    long getPiecesCompleted();
+
+    long getRequestTimeouts();
+
+    long getRequestLatencyCount();
+
+    double getRequestLatencyMeanMillis();
+
+    double getRequestLatencyP50Millis();
+
+    double getRequestLatencyP90Millis();
+
+    double getRequestLatencyP99Millis();
+
+    int getOutboundQueueDepth();
+
+    long getChokesSent();
+
+    long getUnchokesSent();
+
+    long getChokesReceived();
+
+    long getUnchokesReceived();
+
+    long getTimeToFirstPieceMillis();
+
+    long getTimeToCompletionMillis();
+}
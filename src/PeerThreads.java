@@ -0,0 +1,62 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Creates the threads used for connection handling and scheduling.
+// ThreadMode platform keeps one OS thread per task, ThreadMode virtual runs the same tasks on virtual threads (Java 21+).
+// Virtual threads are looked up reflectively so the project still compiles and runs on Java 17, where we fall back to platform threads.
+public class PeerThreads {
+    private final ThreadFactory threadFactory;
+    private final boolean virtual;
+
+    public PeerThreads(String mode, String namePrefix) {
+        ThreadFactory virtualFactory = null;
+        if (mode.equalsIgnoreCase("virtual")) {
+            virtualFactory = createVirtualThreadFactory(namePrefix);
+            if (virtualFactory == null) {
+                Log.info("Virtual threads need Java 21 or newer, using platform threads instead.");
+            }
+        }
+
+        this.virtual = virtualFactory != null;
+        this.threadFactory = virtual ? virtualFactory : createPlatformThreadFactory(namePrefix);
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public ThreadFactory getThreadFactory() {
+        return threadFactory;
+    }
+
+    // Starts every task on a fresh thread, virtual threads are cheap enough that they shouldn't be pooled
+    public Executor newThreadPerTaskExecutor() {
+        return task -> threadFactory.newThread(task).start();
+    }
+
+    public ScheduledExecutorService newScheduledExecutor(int threads) {
+        return Executors.newScheduledThreadPool(threads, threadFactory);
+    }
+
+    // Equivalent to Thread.ofVirtual().name(namePrefix, 0).factory()
+    private static ThreadFactory createVirtualThreadFactory(String namePrefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory createPlatformThreadFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> new Thread(task, namePrefix + counter.getAndIncrement());
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+// Durable record of the pieces a leecher already has, so a restarted peer only downloads what is missing.
+// The file is a header followed by one 8 byte record per completed piece and is only ever appended to.
+// Completed pieces are collected and written in batches by sync(): the piece store is forced to disk first,
+// then the records are appended and forced, so a record never points at content that isn't on disk yet.
+// Every record carries a check value, after a crash a torn last record is detected and cut off on the next start.
+public class PieceCheckpoint {
+    private static final int MAGIC = 0x50434B31; // "PCK1"
+    private static final int HEADER_LENGTH = 24; // magic, numPieces, pieceSize, fileSize (8 bytes), CRC32C of the rest
+    private static final int RECORD_LENGTH = 8; // piece index, piece index ^ RECORD_CHECK
+    private static final int RECORD_CHECK = 0x9E3779B9;
+
+    private final FileChannel channel;
+    private final PieceStore pieceStore;
+    private final int numPieces;
+    private final BitSet recoveredPieces = new BitSet();
+    private long appendPosition;
+
+    private int[] pending = new int[64]; // Completed pieces that aren't in the file yet
+    private int pendingCount = 0;
+    private final ReentrantLock syncLock = new ReentrantLock(); // One sync at a time, recordPiece doesn't wait for it
+
+    // Opens the checkpoint at path, or starts a new one if it is missing, damaged or was written for another file.
+    // dataIntact false means the piece store's file wasn't there anymore, whatever the checkpoint says is stale.
+    public PieceCheckpoint(Path path, PieceStore pieceStore, long fileSize, int pieceSize, boolean dataIntact) throws IOException {
+        this.pieceStore = pieceStore;
+        this.numPieces = pieceStore.getNumPieces();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer expectedHeader = header(numPieces, pieceSize, fileSize);
+        if (dataIntact && readRecords(expectedHeader)) {
+            return;
+        }
+
+        // Start over with an empty checkpoint
+        recoveredPieces.clear();
+        channel.truncate(0);
+        channel.write(expectedHeader, 0);
+        channel.force(false);
+        appendPosition = HEADER_LENGTH;
+    }
+
+    // Pieces the checkpoint says we already have
+    public BitSet getRecoveredPieces() {
+        return (BitSet) recoveredPieces.clone();
+    }
+
+    // Called when a piece is complete, it is written out with the next sync
+    public synchronized void recordPiece(int pieceIndex) {
+        if (pendingCount == pending.length) {
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        }
+        pending[pendingCount++] = pieceIndex;
+    }
+
+    public void sync() throws IOException {
+        syncLock.lock();
+        try {
+            int[] batch;
+            int count;
+            synchronized (this) {
+                if (pendingCount == 0) {
+                    return;
+                }
+                batch = pending;
+                count = pendingCount;
+                pending = new int[Math.max(64, count)];
+                pendingCount = 0;
+            }
+
+            pieceStore.flush(); // Content first, the records must not get ahead of it
+
+            ByteBuffer records = ByteBuffer.allocate(count * RECORD_LENGTH);
+            for (int i = 0; i < count; i++) {
+                records.putInt(batch[i]);
+                records.putInt(batch[i] ^ RECORD_CHECK);
+            }
+            records.flip();
+            while (records.hasRemaining()) {
+                appendPosition += channel.write(records, appendPosition);
+            }
+            channel.force(false);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    // Reads the existing checkpoint. Returns false if it has to be started over.
+    private boolean readRecords(ByteBuffer expectedHeader) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_LENGTH) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // Keep reading until the header is complete
+        }
+        header.flip();
+        if (!header.equals(expectedHeader)) {
+            return false;
+        }
+
+        int numRecords = (int) Math.min((size - HEADER_LENGTH) / RECORD_LENGTH, Integer.MAX_VALUE / RECORD_LENGTH);
+        ByteBuffer records = ByteBuffer.allocate(numRecords * RECORD_LENGTH);
+        while (records.hasRemaining() && channel.read(records, HEADER_LENGTH + records.position()) > 0) {
+            // Keep reading until every record is in
+        }
+        records.flip();
+
+        long validEnd = HEADER_LENGTH;
+        while (records.remaining() >= RECORD_LENGTH) {
+            int pieceIndex = records.getInt();
+            int check = records.getInt();
+            if ((pieceIndex ^ RECORD_CHECK) != check || pieceIndex < 0 || pieceIndex >= numPieces) {
+                break; // Torn write from a crash, everything after it is garbage as well
+            }
+            recoveredPieces.set(pieceIndex);
+            validEnd += RECORD_LENGTH;
+        }
+
+        if (validEnd != size) {
+            channel.truncate(validEnd);
+        }
+        appendPosition = validEnd;
+        return true;
+    }
+
+    private static ByteBuffer header(int numPieces, int pieceSize, long fileSize) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC);
+        header.putInt(numPieces);
+        header.putInt(pieceSize);
+        header.putLong(fileSize);
+
+        CRC32C crc = new CRC32C();
+        crc.update(header.array(), 0, HEADER_LENGTH - 4);
+        header.putInt((int) crc.getValue());
+        header.flip();
+        return header;
+    }
+}
@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32C;
+
+// One digest per piece of the shared file. Peers that have the whole file hash it at startup and hand the manifest
+// to their neighbors in a MANIFEST message, leechers check every completed piece against it before announcing it.
+// Hashing many pieces at once (startup) is split across a fork-join pool, one task per range of pieces.
+public class PieceManifest {
+    private static final int MAX_PIECES_PER_TASK = 4;
+
+    public enum Algorithm {
+        SHA256((byte) 1, 32),
+        CRC32C((byte) 2, 4);
+
+        final byte id;
+        final int digestLength;
+
+        Algorithm(byte id, int digestLength) {
+            this.id = id;
+            this.digestLength = digestLength;
+        }
+
+        // PieceHash in Common.cfg: sha256, crc32c or none (null)
+        public static Algorithm fromConfig(String value) {
+            switch (value.toLowerCase()) {
+                case "sha256":
+                case "sha-256":
+                    return SHA256;
+                case "crc32c":
+                    return CRC32C;
+                case "none":
+                    return null;
+                default:
+                    throw new IllegalArgumentException("Unknown PieceHash: " + value);
+            }
+        }
+
+        static Algorithm fromId(byte id) throws IOException {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id == id) {
+                    return algorithm;
+                }
+            }
+            throw new IOException("Unknown manifest digest algorithm " + id);
+        }
+    }
+
+    // MessageDigest isn't thread safe, every pool worker keeps its own
+    private static final ThreadLocal<MessageDigest> SHA256_DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final Algorithm algorithm;
+    private final int numPieces;
+    private final int pieceSize;
+    private final long fileSize;
+    private final byte[] digests; // numPieces * digestLength, piece i starts at i * digestLength
+
+    private PieceManifest(Algorithm algorithm, int numPieces, int pieceSize, long fileSize, byte[] digests) {
+        this.algorithm = algorithm;
+        this.numPieces = numPieces;
+        this.pieceSize = pieceSize;
+        this.fileSize = fileSize;
+        this.digests = digests;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    // Whether the manifest was made for a file with this layout
+    public boolean matches(int numPieces, int pieceSize, long fileSize) {
+        return this.numPieces == numPieces && this.pieceSize == pieceSize && this.fileSize == fileSize;
+    }
+
+    // Hashes every piece of a complete store
+    public static PieceManifest generate(PieceStore pieceStore, Algorithm algorithm, int pieceSize, long fileSize, ForkJoinPool pool) throws IOException {
+        int numPieces = pieceStore.getNumPieces();
+        int[] pieces = new int[numPieces];
+        Arrays.setAll(pieces, i -> i);
+        byte[] digests = new byte[numPieces * algorithm.digestLength];
+        hashAll(pieceStore, algorithm, pieces, digests, pool);
+        return new PieceManifest(algorithm, numPieces, pieceSize, fileSize, digests);
+    }
+
+    public boolean verify(int pieceIndex, ByteBuffer pieceContent) {
+        byte[] digest = new byte[algorithm.digestLength];
+        digest(algorithm, pieceContent, digest, 0);
+        int start = pieceIndex * algorithm.digestLength;
+        return Arrays.equals(digest, 0, digest.length, digests, start, start + digest.length);
+    }
+
+    public boolean verify(PieceStore pieceStore, int pieceIndex) throws IOException {
+        return verify(pieceIndex, pieceStore.sliceBlock(pieceIndex, 0, pieceStore.getPieceLength(pieceIndex)));
+    }
+
+    // Checks the given pieces in parallel, returns the ones whose content doesn't match
+    public BitSet verifyAll(PieceStore pieceStore, BitSet pieces, ForkJoinPool pool) throws IOException {
+        int[] indexes = pieces.stream().toArray();
+        byte[] actual = new byte[indexes.length * algorithm.digestLength];
+        hashAll(pieceStore, algorithm, indexes, actual, pool);
+
+        BitSet failed = new BitSet(numPieces);
+        int length = algorithm.digestLength;
+        for (int i = 0; i < indexes.length; i++) {
+            int expectedStart = indexes[i] * length;
+            if (!Arrays.equals(actual, i * length, (i + 1) * length, digests, expectedStart, expectedStart + length)) {
+                failed.set(indexes[i]);
+            }
+        }
+        return failed;
+    }
+
+    // MANIFEST payload: algorithm, numPieces, pieceSize, fileSize, then the digests back to back
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + 4 + 8 + digests.length);
+        buffer.put(algorithm.id);
+        buffer.putInt(numPieces);
+        buffer.putInt(pieceSize);
+        buffer.putLong(fileSize);
+        buffer.put(digests);
+        return buffer.array();
+    }
+
+    public static PieceManifest decode(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < 17) {
+            throw new IOException("Manifest is too short");
+        }
+        Algorithm algorithm = Algorithm.fromId(payload.get());
+        int numPieces = payload.getInt();
+        int pieceSize = payload.getInt();
+        long fileSize = payload.getLong();
+        if (numPieces < 0 || (long) numPieces * algorithm.digestLength != payload.remaining()) {
+            throw new IOException("Manifest has " + payload.remaining() + " digest bytes for " + numPieces + " pieces");
+        }
+        byte[] digests = new byte[payload.remaining()];
+        payload.get(digests);
+        return new PieceManifest(algorithm, numPieces, pieceSize, fileSize, digests);
+    }
+
+    // Written to a temporary file first, so a crash never leaves half a manifest behind
+    public void save(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, encode());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Null if there is no manifest at path
+    public static PieceManifest load(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        return decode(ByteBuffer.wrap(Files.readAllBytes(path)));
+    }
+
+    private static void hashAll(PieceStore pieceStore, Algorithm algorithm, int[] pieces, byte[] digests, ForkJoinPool pool) throws IOException {
+        try {
+            pool.invoke(new HashTask(pieceStore, algorithm, pieces, digests, 0, pieces.length));
+        } catch (UncheckedIOException e) {
+            // The pool may rethrow a copy of the exception from another thread, look for the IOException underneath
+            Throwable cause = e;
+            while (!(cause instanceof IOException)) {
+                cause = cause.getCause();
+            }
+            throw (IOException) cause;
+        }
+    }
+
+    private static void digest(Algorithm algorithm, ByteBuffer content, byte[] out, int outOffset) {
+        ByteBuffer view = content.duplicate(); // Leave the caller's position alone
+        if (algorithm == Algorithm.CRC32C) {
+            CRC32C crc = new CRC32C();
+            crc.update(view);
+            int value = (int) crc.getValue();
+            out[outOffset] = (byte) (value >>> 24);
+            out[outOffset + 1] = (byte) (value >>> 16);
+            out[outOffset + 2] = (byte) (value >>> 8);
+            out[outOffset + 3] = (byte) value;
+        } else {
+            MessageDigest sha256 = SHA256_DIGEST.get();
+            sha256.update(view);
+            System.arraycopy(sha256.digest(), 0, out, outOffset, algorithm.digestLength);
+        }
+    }
+
+    // Hashes pieces[from, to) into digests[i * digestLength], splitting the range until it is small enough
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L; // ForkJoinTask is Serializable, tasks are never serialized
+
+        private final PieceStore pieceStore;
+        private final Algorithm algorithm;
+        private final int[] pieces;
+        private final byte[] digests;
+        private final int from;
+        private final int to;
+
+        HashTask(PieceStore pieceStore, Algorithm algorithm, int[] pieces, byte[] digests, int from, int to) {
+            this.pieceStore = pieceStore;
+            this.algorithm = algorithm;
+            this.pieces = pieces;
+            this.digests = digests;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > MAX_PIECES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new HashTask(pieceStore, algorithm, pieces, digests, from, middle),
+                        new HashTask(pieceStore, algorithm, pieces, digests, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                int pieceIndex = pieces[i];
+                try {
+                    ByteBuffer content = pieceStore.sliceBlock(pieceIndex, 0, pieceStore.getPieceLength(pieceIndex));
+                    digest(algorithm, content, digests, i * algorithm.digestLength);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // compute() can't throw checked exceptions
+                }
+            }
+        }
+    }
+}
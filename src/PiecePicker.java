@@ -0,0 +1,393 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntPredicate;
+
+// Decides which piece to request next from a neighbor.
+// Keeps a count per piece of how many neighbors have it, updated on every BITFIELD, HAVE and disconnect.
+//
+// For rarest-first the pieces we still need are kept in one array ordered by availability,
+// split into buckets (all pieces with availability a sit in [bucketStart[a], bucketStart[a + 1])).
+// Changing a piece's availability by one only swaps it to the edge of its bucket and moves the bucket boundary.
+// Every neighbor also has a PeerIndex of the positions in that array holding one of its pieces, which the swaps keep
+// up to date, so an update is O(d log n) for d neighbors. Picking walks the buckets from the rarest one up, counts the
+// neighbor's pieces in each with the index and skips the buckets it can't help with without looking at their pieces.
+// In the first bucket where it has some, a uniformly random one of them is taken: random probes first, then one pass
+// over just the neighbor's pieces of that bucket if the probes only found pieces that are in progress already.
+// A pick is O(d log n), the pass adds O(k log n) for the k pieces it goes through, which are mostly in flight.
+// Bulk changes (a BITFIELD, a neighbor that goes away) rebuild the indexes instead, O(d n).
+public class PiecePicker {
+    private static final int RANDOM_PROBES = 8; // Per bucket, before the neighbor's pieces in it are gone through
+    private static final int BULK_FRACTION = 16; // Changing more than numPieces / BULK_FRACTION pieces at once rebuilds the indexes
+
+    public enum Policy {
+        RANDOM, RAREST_FIRST, SEQUENTIAL;
+
+        public static Policy fromConfig(String value) {
+            switch (value.toLowerCase()) {
+                case "random":
+                    return RANDOM;
+                case "sequential":
+                    return SEQUENTIAL;
+                case "rarest":
+                case "rarest-first":
+                    return RAREST_FIRST;
+                default:
+                    throw new IllegalArgumentException("Unknown PieceSelectionPolicy: " + value);
+            }
+        }
+    }
+
+    private final Policy policy;
+    private final int numPieces;
+    private final int[] availability;   // pieceIndex -> number of neighbors that have it
+    private final int[] order;          // needed pieces, ordered by availability
+    private final int[] position;       // pieceIndex -> index in order, -1 once we have the piece
+    private int[] bucketStart;          // availability -> first index in order with that availability
+    private int maxAvailability = 0;
+    private int neededCount;
+    private final Map<Integer, PeerIndex> peers = new HashMap<>(); // peerID -> what the neighbor has
+    private boolean indexesStale = false; // During a bulk change, swaps leave the indexes alone
+
+    public PiecePicker(int numPieces, Policy policy) {
+        this.policy = policy;
+        this.numPieces = numPieces;
+        this.availability = new int[numPieces];
+        this.order = new int[numPieces];
+        this.position = new int[numPieces];
+        this.bucketStart = new int[8];
+        this.neededCount = numPieces;
+
+        for (int i = 0; i < numPieces; i++) {
+            order[i] = i;
+            position[i] = i;
+        }
+        // Everything starts in bucket 0, all buckets above it are empty
+        for (int a = 1; a < bucketStart.length; a++) {
+            bucketStart[a] = numPieces;
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public synchronized int getAvailability(int pieceIndex) {
+        return availability[pieceIndex];
+    }
+
+    // BITFIELD received, or the newly set bits of one. Pieces the neighbor is already known to have are left alone.
+    public synchronized void addPeerPieces(int peerID, BitSet pieces) {
+        PeerIndex peer = peers.computeIfAbsent(peerID, id -> new PeerIndex(numPieces));
+        BitSet added = pieces.get(0, numPieces);
+        added.andNot(peer.pieces);
+        boolean bulk = beginBulk(added.cardinality());
+        for (int i = added.nextSetBit(0); i >= 0; i = added.nextSetBit(i + 1)) {
+            addPiece(peer, i, bulk);
+        }
+        endBulk(bulk);
+    }
+
+    // HAVE received for a piece
+    public synchronized void addPeerPiece(int peerID, int pieceIndex) {
+        PeerIndex peer = peers.computeIfAbsent(peerID, id -> new PeerIndex(numPieces));
+        if (!peer.pieces.get(pieceIndex)) {
+            addPiece(peer, pieceIndex, false);
+        }
+    }
+
+    // Neighbor disconnected, its pieces aren't available anymore
+    public synchronized void removePeer(int peerID) {
+        PeerIndex peer = peers.remove(peerID);
+        if (peer == null) {
+            return;
+        }
+        boolean bulk = beginBulk(peer.pieces.cardinality());
+        for (int i = peer.pieces.nextSetBit(0); i >= 0; i = peer.pieces.nextSetBit(i + 1)) {
+            decrement(i);
+        }
+        endBulk(bulk);
+    }
+
+    private void addPiece(PeerIndex peer, int pieceIndex, boolean bulk) {
+        peer.pieces.set(pieceIndex);
+        increment(pieceIndex);
+        if (!bulk && position[pieceIndex] >= 0) {
+            peer.set(position[pieceIndex]);
+        }
+    }
+
+    // Too many changes to keep the indexes up to date one swap at a time, they are rebuilt once at the end
+    private boolean beginBulk(int changes) {
+        indexesStale = changes > numPieces / BULK_FRACTION;
+        return indexesStale;
+    }
+
+    private void endBulk(boolean bulk) {
+        if (bulk) {
+            for (PeerIndex peer : peers.values()) {
+                peer.rebuild(order, neededCount);
+            }
+            indexesStale = false;
+        }
+    }
+
+    // We have the piece now, it doesn't take part in picking anymore
+    public synchronized void markHave(int pieceIndex) {
+        int pos = position[pieceIndex];
+        if (pos < 0) {
+            return;
+        }
+
+        // Move the piece to the end of its bucket, then shift every higher bucket one slot to the left
+        // by moving its last element into the hole in front of it.
+        int a = availability[pieceIndex];
+        int hole = bucketStart[a + 1] - 1;
+        swap(pos, hole);
+        for (int b = a + 1; b <= maxAvailability; b++) {
+            int last = bucketStart[b + 1] - 1;
+            swap(hole, last);
+            bucketStart[b]--;
+            hole = last;
+        }
+        for (int b = maxAvailability + 1; b < bucketStart.length; b++) {
+            bucketStart[b]--;
+        }
+
+        position[pieceIndex] = -1;
+        neededCount--;
+        // The piece ended up in the slot just past the needed pieces, the indexes only cover the needed ones
+        for (PeerIndex peer : peers.values()) {
+            if (peer.get(neededCount)) {
+                peer.clear(neededCount);
+            }
+        }
+    }
+
+    // Picks a piece the neighbor has and isRequestable accepts, or -1 if there is none
+    public synchronized int pickPiece(int peerID, IntPredicate isRequestable) {
+        PeerIndex peer = peers.get(peerID);
+        if (peer == null) {
+            return -1; // Nothing heard from the neighbor yet
+        }
+        switch (policy) {
+            case SEQUENTIAL:
+                return pickSequential(peer, isRequestable);
+            case RANDOM:
+                return pickAmong(peer, 0, peer.rank(neededCount), isRequestable);
+            default:
+                return pickRarest(peer, isRequestable);
+        }
+    }
+
+    private int pickRarest(PeerIndex peer, IntPredicate isRequestable) {
+        // Bucket 0 can be skipped, the neighbor would count towards availability if it had one of those pieces
+        for (int a = 1; a <= maxAvailability; a++) {
+            int start = bucketStart[a];
+            int end = bucketStart[a + 1];
+            if (start == end) {
+                continue;
+            }
+            int first = peer.rank(start);
+            int count = peer.rank(end) - first;
+            if (count == 0) {
+                continue; // The neighbor has none of this bucket's pieces
+            }
+            int chosen = pickAmong(peer, first, count, isRequestable);
+            if (chosen != -1) {
+                return chosen;
+            }
+        }
+        return -1;
+    }
+
+    // Uniform choice among the neighbor's pieces number first to first + count - 1, counted in order
+    private int pickAmong(PeerIndex peer, int first, int count, IntPredicate isRequestable) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        // A probe that hits is uniform among the usable ones (rejection sampling)
+        for (int probe = 0; probe < RANDOM_PROBES && probe < count; probe++) {
+            int pieceIndex = order[peer.select(first + random.nextInt(count))];
+            if (isRequestable.test(pieceIndex)) {
+                return pieceIndex;
+            }
+        }
+
+        // Few or none of them usable, choose among all of them in one reservoir sampling pass
+        int chosen = -1;
+        int seen = 0;
+        for (int k = first; k < first + count; k++) {
+            int pieceIndex = order[peer.select(k)];
+            if (isRequestable.test(pieceIndex) && random.nextInt(++seen) == 0) {
+                chosen = pieceIndex;
+            }
+        }
+        return chosen;
+    }
+
+    private int pickSequential(PeerIndex peer, IntPredicate isRequestable) {
+        BitSet neighborPieces = peer.pieces;
+        for (int i = neighborPieces.nextSetBit(0); i >= 0; i = neighborPieces.nextSetBit(i + 1)) {
+            if (position[i] >= 0 && isRequestable.test(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void increment(int pieceIndex) {
+        int a = availability[pieceIndex]++;
+        if (a + 1 > maxAvailability) {
+            maxAvailability = a + 1;
+            ensureBuckets(maxAvailability + 2);
+        }
+
+        int pos = position[pieceIndex];
+        if (pos < 0) {
+            return; // Already have it, only the count matters
+        }
+        // Last slot of bucket a becomes the first slot of bucket a + 1
+        int last = bucketStart[a + 1] - 1;
+        swap(pos, last);
+        bucketStart[a + 1]--;
+    }
+
+    private void decrement(int pieceIndex) {
+        int a = availability[pieceIndex];
+        if (a == 0) {
+            return;
+        }
+        availability[pieceIndex]--;
+
+        int pos = position[pieceIndex];
+        if (pos < 0) {
+            return;
+        }
+        // First slot of bucket a becomes the last slot of bucket a - 1
+        int first = bucketStart[a];
+        swap(pos, first);
+        bucketStart[a]++;
+    }
+
+    private void ensureBuckets(int size) {
+        if (bucketStart.length >= size) {
+            return;
+        }
+        int[] bigger = new int[Math.max(size, bucketStart.length * 2)];
+        System.arraycopy(bucketStart, 0, bigger, 0, bucketStart.length);
+        for (int a = bucketStart.length; a < bigger.length; a++) {
+            bigger[a] = neededCount; // New buckets are empty and sit at the end of the needed pieces
+        }
+        bucketStart = bigger;
+    }
+
+    private void swap(int i, int j) {
+        if (i == j) {
+            return;
+        }
+        int pieceI = order[i];
+        int pieceJ = order[j];
+        order[i] = pieceJ;
+        order[j] = pieceI;
+        position[pieceJ] = i;
+        position[pieceI] = j;
+        if (indexesStale) {
+            return;
+        }
+        for (PeerIndex peer : peers.values()) {
+            boolean hasI = peer.get(i);
+            if (hasI != peer.get(j)) {
+                if (hasI) {
+                    peer.clear(i);
+                    peer.set(j);
+                } else {
+                    peer.clear(j);
+                    peer.set(i);
+                }
+            }
+        }
+    }
+
+    // The positions in order holding a piece one neighbor has, as a bitmap with a Fenwick tree over the bit counts
+    // of its words, so counting the neighbor's pieces below a position and finding the k-th one are both O(log n).
+    private static final class PeerIndex {
+        final BitSet pieces; // By piece index, what the neighbor has
+        private final long[] words; // By position in order
+        private final int[] tree; // 1-based, tree[i] is the bit count of words (i - (i & -i), i]
+
+        PeerIndex(int numPieces) {
+            this.pieces = new BitSet(numPieces);
+            this.words = new long[(numPieces + 63) / 64];
+            this.tree = new int[words.length + 1];
+        }
+
+        boolean get(int pos) {
+            return (words[pos >>> 6] & (1L << pos)) != 0;
+        }
+
+        void set(int pos) {
+            words[pos >>> 6] |= 1L << pos;
+            add(pos >>> 6, 1);
+        }
+
+        void clear(int pos) {
+            words[pos >>> 6] &= ~(1L << pos);
+            add(pos >>> 6, -1);
+        }
+
+        private void add(int word, int delta) {
+            for (int i = word + 1; i < tree.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        // Set positions below pos
+        int rank(int pos) {
+            int word = pos >>> 6;
+            int count = 0;
+            for (int i = word; i > 0; i -= i & -i) {
+                count += tree[i];
+            }
+            if ((pos & 63) != 0) {
+                count += Long.bitCount(words[word] & ((1L << pos) - 1));
+            }
+            return count;
+        }
+
+        // Position of the k-th set position, counting from 0. There have to be more than k.
+        int select(int k) {
+            int word = 0;
+            for (int step = Integer.highestOneBit(tree.length - 1); step > 0; step >>= 1) {
+                int next = word + step;
+                if (next < tree.length && tree[next] <= k) {
+                    word = next;
+                    k -= tree[next];
+                }
+            }
+            long bits = words[word];
+            for (; k > 0; k--) {
+                bits &= bits - 1; // Drop the lowest set bit
+            }
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        void rebuild(int[] order, int neededCount) {
+            Arrays.fill(words, 0);
+            for (int pos = 0; pos < neededCount; pos++) {
+                if (pieces.get(order[pos])) {
+                    words[pos >>> 6] |= 1L << pos;
+                }
+            }
+            Arrays.fill(tree, 0);
+            for (int i = 1; i < tree.length; i++) {
+                tree[i] += Long.bitCount(words[i - 1]);
+                int parent = i + (i & -i);
+                if (parent < tree.length) {
+                    tree[parent] += tree[i];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Download state of every piece, shared by the reader threads, the verifier pool and the schedulers without a lock.
+// A piece is NEEDED, then CLAIMED by the neighbor it is first requested from while it is downloaded and verified,
+// then HAVE. A claim keeps its owner's peer ID in the low 32 bits, next to the tag, so no peer ID can be mistaken for
+// NEEDED or HAVE. Every transition is a CAS, so only one caller can claim a piece and only one can complete it.
+// If the owner goes away its claims are released, and whoever picks the piece next takes it over. The HAVE bits are also kept as AtomicLongArray words, so the bitfield can be copied
+// for a BITFIELD message or an interest check without walking the per-piece states.
+public class PieceStateTable {
+    private static final long NEEDED = 0;
+    private static final long HAVE = 1L << 32;
+    private static final long CLAIMED = 2L << 32; // | owner peer ID
+
+    private final int numPieces;
+    private final AtomicLongArray states;
+    private final AtomicLongArray haveWords; // Same layout as BitSet.toLongArray
+    private final AtomicInteger haveCount = new AtomicInteger();
+
+    public PieceStateTable(int numPieces) {
+        this.numPieces = numPieces;
+        this.states = new AtomicLongArray(numPieces);
+        this.haveWords = new AtomicLongArray((numPieces + 63) >>> 6);
+    }
+
+    public boolean has(int pieceIndex) {
+        return states.get(pieceIndex) == HAVE;
+    }
+
+    // Nobody has started downloading the piece yet
+    public boolean isNeeded(int pieceIndex) {
+        return states.get(pieceIndex) == NEEDED;
+    }
+
+    private static long claimedBy(int peerID) {
+        return CLAIMED | (peerID & 0xFFFFFFFFL);
+    }
+
+    // NEEDED -> claimed by peerID. Only one caller gets true for a piece.
+    public boolean claim(int pieceIndex, int peerID) {
+        return states.compareAndSet(pieceIndex, NEEDED, claimedBy(peerID));
+    }
+
+    // Claimed by peerID -> NEEDED, for a neighbor that is gone. False if somebody else owns the piece or it is done.
+    public boolean release(int pieceIndex, int peerID) {
+        return states.compareAndSet(pieceIndex, claimedBy(peerID), NEEDED);
+    }
+
+    // Any state -> HAVE. Returns true only for the call that completed the piece.
+    public boolean markHave(int pieceIndex) {
+        long state;
+        do {
+            state = states.get(pieceIndex);
+            if (state == HAVE) {
+                return false;
+            }
+        } while (!states.compareAndSet(pieceIndex, state, HAVE));
+
+        long mask = 1L << pieceIndex; // Shift distance is taken mod 64
+        haveWords.accumulateAndGet(pieceIndex >>> 6, mask, (word, bit) -> word | bit);
+        haveCount.incrementAndGet();
+        return true;
+    }
+
+    public int getHaveCount() {
+        return haveCount.get();
+    }
+
+    public int getMissingCount() {
+        return numPieces - haveCount.get();
+    }
+
+    public boolean isComplete() {
+        return haveCount.get() == numPieces;
+    }
+
+    // Snapshot of the HAVE bits. Pieces completed while copying may or may not be in it.
+    public BitSet copyHave() {
+        long[] words = new long[haveWords.length()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = haveWords.get(i);
+        }
+        return BitSet.valueOf(words);
+    }
+}
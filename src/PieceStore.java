@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+// Storage backend for the pieces of the shared file.
+// peerProcess only talks to this interface so the backing storage (heap, mapped file, ...) can be swapped via Common.cfg.
+public interface PieceStore {
+
+    int getNumPieces();
+
+    // Length of a single piece, the last piece might be smaller than PieceSize
+    int getPieceLength(int pieceIndex);
+
+    // Returns a copy of the piece content
+    byte[] readPiece(int pieceIndex) throws IOException;
+
+    void writePiece(int pieceIndex, byte[] pieceContent) throws IOException;
+
+    // Writes part of a piece, used when a piece is downloaded block by block.
+    // The content is copied straight out of the buffer (usually a slice of a read buffer), its position isn't changed.
+    void writeBlock(int pieceIndex, int offset, ByteBuffer blockContent) throws IOException;
+
+    default void writeBlock(int pieceIndex, int offset, byte[] blockContent) throws IOException {
+        writeBlock(pieceIndex, offset, ByteBuffer.wrap(blockContent));
+    }
+
+    default byte[] readBlock(int pieceIndex, int offset, int length) throws IOException {
+        return Arrays.copyOfRange(readPiece(pieceIndex), offset, offset + length);
+    }
+
+    // Read only view of (part of) a piece for gathering writes, stores that can't hand out a view return a wrapped copy
+    default ByteBuffer sliceBlock(int pieceIndex, int offset, int length) throws IOException {
+        return ByteBuffer.wrap(readBlock(pieceIndex, offset, length)).asReadOnlyBuffer();
+    }
+
+    // Whether transferBlock can stream data from the file without copying it onto the heap
+    default boolean supportsTransfer() {
+        return false;
+    }
+
+    // Writes (part of) a piece into the channel, used for zero-copy PIECE uploads
+    default void transferBlock(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        throw new UnsupportedOperationException("Piece store can't transfer pieces directly");
+    }
+
+    // Whether written pieces end up in the target file as they arrive, so they survive a restart of the peer
+    default boolean isPersistent() {
+        return false;
+    }
+
+    // Whether the store picked up a full size file left behind by an earlier run, only then can a checkpoint be trusted
+    default boolean openedExistingData() {
+        return false;
+    }
+
+    // Called once a piece is complete and verified, it won't be written to again
+    default void commitPiece(int pieceIndex) throws IOException {
+    }
+
+    // Called once every piece is present, makes sure the complete file ends up on disk
+    void flush() throws IOException;
+
+    void close() throws IOException;
+
+    static PieceStore create(String type, String filePath, long fileSize, int pieceSize, boolean hasFile) throws IOException {
+        return create(type, filePath, fileSize, pieceSize, hasFile, null);
+    }
+
+    // ioExecutor is the single I/O thread a writethrough store writes on, null gives the store one of its own
+    static PieceStore create(String type, String filePath, long fileSize, int pieceSize, boolean hasFile,
+                             ExecutorService ioExecutor) throws IOException {
+        if (type == null || type.equalsIgnoreCase("mapped")) {
+            return new MappedPieceStore(filePath, fileSize, pieceSize, hasFile);
+        } else if (type.equalsIgnoreCase("heap")) {
+            return new HeapPieceStore(filePath, fileSize, pieceSize, hasFile);
+        } else if (type.equalsIgnoreCase("writethrough")) {
+            return new WriteThroughPieceStore(filePath, fileSize, pieceSize, hasFile, ioExecutor);
+        }
+        throw new IllegalArgumentException("Unknown PieceStore type: " + type);
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// A PIECE or BLOCK waiting in a neighbor's OutboundQueue.
+// The content is only read from the piece store once the upload reaches the front of the queue,
+// so a CANCEL or CHOKE that gets there first drops it without touching the store.
+public class PieceUpload {
+    public static final int MAX_HEADER_LENGTH = 17; // BLOCK header with a file ID, a PIECE header without one is 9 bytes
+
+    private final Neighbor neighbor;
+    private final PieceStore pieceStore;
+    private final SharedFiles files;
+    private final int pieceIndex;
+    private final int offset;
+    private final int length;
+    private final boolean asBlock;
+    private final BandwidthLimiter limiter;
+
+    public PieceUpload(Neighbor neighbor, PieceStore pieceStore, SharedFiles files, int pieceIndex, int offset, int length, boolean asBlock, BandwidthLimiter limiter) {
+        this.neighbor = neighbor;
+        this.limiter = limiter;
+        this.pieceStore = pieceStore;
+        this.files = files;
+        this.pieceIndex = pieceIndex;
+        this.offset = offset;
+        this.length = length;
+        this.asBlock = asBlock;
+    }
+
+    public int getPieceIndex() {
+        return pieceIndex;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    // Takes the content's bytes from the upload limit, returns the nanoseconds the writer has to wait before sending it
+    public long reserveBandwidth() {
+        return limiter.isLimited() ? limiter.reserve(neighbor.getUploadBucket(), length) : 0;
+    }
+
+    // Encodes the PIECE or BLOCK header into a buffer the writer reuses for every upload
+    public void putHeader(ByteBuffer buffer) {
+        if (asBlock) {
+            Message.putBlockHeader(buffer, files, pieceIndex, offset, length);
+        } else {
+            Message.putPieceHeader(buffer, files, pieceIndex, length);
+        }
+    }
+
+    // The content without copying it where the store allows (a slice of the mapped file)
+    public ByteBuffer content() throws IOException {
+        return pieceStore.sliceBlock(pieceIndex, offset, length);
+    }
+
+    public boolean supportsTransfer() {
+        return pieceStore.supportsTransfer();
+    }
+
+    // Lets the kernel copy the content from the file to the socket (sendfile), it never passes through the Java heap
+    public void transferContent(WritableByteChannel target) throws IOException {
+        pieceStore.transferBlock(pieceIndex, offset, length, target);
+    }
+
+    // Called by the writer once the whole frame is out
+    public void onSent() {
+        neighbor.recordUploaded(length);
+        Log.trace(() -> "Sent " + (asBlock ? "BLOCK" : "PIECE") + " message for piece " + pieceIndex
+                + (asBlock ? " offset " + offset : "") + " to peer " + neighbor.getPeerID());
+    }
+}
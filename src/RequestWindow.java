@@ -0,0 +1,79 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Number of REQUESTs we keep in flight to one neighbor, counted in blocks (whole pieces unless BlockSize is set).
+// The window is sized from the measured bandwidth-delay product of the link: enough blocks to cover
+// one round trip at the rate the neighbor is currently delivering, plus one so the window keeps probing for more.
+public class RequestWindow {
+    private static final double SMOOTHING = 0.25; // Weight of a new throughput sample
+
+    private final int minSize;
+    private final int maxSize;
+    private final int blockSize;
+
+    private final Map<Long, Long> sendTimes = new ConcurrentHashMap<>(); // block key -> System.nanoTime() of the REQUEST
+    private volatile long minRttNanos = Long.MAX_VALUE; // Lowest observed request to block time, queueing excluded as far as possible
+    private volatile double bytesPerSecond = 0;
+    private volatile long lastArrivalNanos = 0;
+    private volatile int size;
+
+    public RequestWindow(int minSize, int maxSize, int blockSize) {
+        this.minSize = Math.max(1, minSize);
+        this.maxSize = Math.max(this.minSize, maxSize);
+        this.blockSize = blockSize;
+        this.size = this.minSize;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public long getMinRttNanos() {
+        return minRttNanos == Long.MAX_VALUE ? 0 : minRttNanos;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void onRequestSent(long blockKey) {
+        sendTimes.put(blockKey, System.nanoTime());
+    }
+
+    // Request timed out or was dropped because we got choked
+    public void onRequestDropped(long blockKey) {
+        sendTimes.remove(blockKey);
+    }
+
+    // Returns the nanoseconds since the block was requested, -1 if it wasn't (or its request was dropped)
+    public synchronized long onBlockReceived(long blockKey, int bytes) {
+        long now = System.nanoTime();
+
+        Long sentAt = sendTimes.remove(blockKey);
+        if (sentAt != null) {
+            minRttNanos = Math.min(minRttNanos, now - sentAt);
+        }
+
+        // If the block was already requested when the previous one arrived the link was busy the whole time,
+        // so the gap between the two arrivals measures the link rather than our own request pacing.
+        // Otherwise the link sat idle waiting for our REQUEST and only the full round trip can be used.
+        long elapsed = 0;
+        if (sentAt != null && lastArrivalNanos != 0 && sentAt < lastArrivalNanos) {
+            elapsed = now - lastArrivalNanos;
+        } else if (sentAt != null) {
+            elapsed = now - sentAt;
+        }
+        if (elapsed > 0) {
+            double sample = bytes * 1_000_000_000.0 / elapsed;
+            bytesPerSecond = bytesPerSecond == 0 ? sample : bytesPerSecond + SMOOTHING * (sample - bytesPerSecond);
+        }
+        lastArrivalNanos = now;
+
+        if (minRttNanos != Long.MAX_VALUE && bytesPerSecond > 0) {
+            double bandwidthDelayProduct = bytesPerSecond * minRttNanos / 1_000_000_000.0;
+            int wanted = (int) Math.ceil(bandwidthDelayProduct / blockSize) + 1;
+            size = Math.max(minSize, Math.min(maxSize, wanted));
+        }
+        return sentAt != null ? now - sentAt : -1;
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// The files a swarm shares and how their pieces are numbered. Every file has its own pieces (its last one may be
+// short), and the files are laid out one after the other in a single piece index space: file i owns the indexes
+// [getFirstPiece(i), getFirstPiece(i + 1)). Piece states, the picker, neighbor bitfields and BITFIELD messages all
+// work on that space, so one connection per neighbor and one choke scheduler serve every file.
+// On the wire a piece is addressed by file ID and its index within the file. With a single file (no FileList)
+// the address is only the index, exactly as before.
+public class SharedFiles {
+    private final boolean multiFile;
+    private final int[] fileIDs;
+    private final String[] names;
+    private final long[] sizes;
+    private final int[] firstPiece; // One entry more than there are files, the last one is the total piece count
+    private final Map<Integer, Integer> indexByID = new HashMap<>();
+
+    private SharedFiles(boolean multiFile, int[] fileIDs, String[] names, long[] sizes, int pieceSize) {
+        if (fileIDs.length == 0) {
+            throw new IllegalArgumentException("No files to share");
+        }
+        this.multiFile = multiFile;
+        this.fileIDs = fileIDs;
+        this.names = names;
+        this.sizes = sizes;
+        this.firstPiece = new int[fileIDs.length + 1];
+
+        long pieces = 0;
+        for (int i = 0; i < fileIDs.length; i++) {
+            if (sizes[i] <= 0) {
+                throw new IllegalArgumentException("File " + names[i] + " has size " + sizes[i]);
+            }
+            if (indexByID.put(fileIDs[i], i) != null) {
+                throw new IllegalArgumentException("File ID " + fileIDs[i] + " is used twice");
+            }
+            firstPiece[i] = (int) pieces;
+            pieces += (sizes[i] + pieceSize - 1) / pieceSize;
+            if (pieces > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("More than " + Integer.MAX_VALUE + " pieces in total");
+            }
+        }
+        firstPiece[fileIDs.length] = (int) pieces;
+    }
+
+    // FileName and FileSize from Common.cfg
+    public static SharedFiles single(String fileName, long fileSize, int pieceSize) {
+        return new SharedFiles(false, new int[]{0}, new String[]{fileName}, new long[]{fileSize}, pieceSize);
+    }
+
+    // FileList: one "<fileID> <fileName> <fileSize>" line per file, pieces are numbered in the order of the lines.
+    // Every peer has to use the same list, a peer that has the file has every file of it in its peer_<id> directory.
+    public static SharedFiles load(Path path, int pieceSize) throws IOException {
+        List<String[]> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path.toFile()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 3) {
+                    entries.add(parts);
+                }
+            }
+        }
+
+        int[] fileIDs = new int[entries.size()];
+        String[] names = new String[entries.size()];
+        long[] sizes = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            fileIDs[i] = Integer.parseInt(entries.get(i)[0]);
+            names[i] = entries.get(i)[1];
+            sizes[i] = Long.parseLong(entries.get(i)[2]);
+        }
+        return new SharedFiles(true, fileIDs, names, sizes, pieceSize);
+    }
+
+    public boolean isMultiFile() {
+        return multiFile;
+    }
+
+    public int getFileCount() {
+        return fileIDs.length;
+    }
+
+    public int getFileID(int file) {
+        return fileIDs[file];
+    }
+
+    public String getName(int file) {
+        return names[file];
+    }
+
+    public long getSize(int file) {
+        return sizes[file];
+    }
+
+    public int getFirstPiece(int file) {
+        return firstPiece[file];
+    }
+
+    public int getNumPieces(int file) {
+        return firstPiece[file + 1] - firstPiece[file];
+    }
+
+    public int getTotalPieces() {
+        return firstPiece[fileIDs.length];
+    }
+
+    public long getTotalSize() {
+        long total = 0;
+        for (long size : sizes) {
+            total += size;
+        }
+        return total;
+    }
+
+    // The file a piece index belongs to
+    public int fileOf(int pieceIndex) {
+        int found = Arrays.binarySearch(firstPiece, 0, fileIDs.length, pieceIndex);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    // Bytes a piece address takes on the wire: the piece index, preceded by the file ID with a FileList
+    public int getPieceAddressLength() {
+        return multiFile ? 8 : 4;
+    }
+
+    public void putPiece(ByteBuffer buffer, int pieceIndex) {
+        if (!multiFile) {
+            buffer.putInt(pieceIndex);
+            return;
+        }
+        int file = fileOf(pieceIndex);
+        buffer.putInt(fileIDs[file]);
+        buffer.putInt(pieceIndex - firstPiece[file]);
+    }
+
+    // Reads a piece address back into a piece index. A file we don't share, or an index outside of it, is a protocol error.
+    public int getPiece(ByteBuffer buffer) throws IOException {
+        if (!multiFile) {
+            int pieceIndex = buffer.getInt();
+            if (pieceIndex < 0 || pieceIndex >= getTotalPieces()) {
+                throw new IOException("Unknown piece " + pieceIndex);
+            }
+            return pieceIndex;
+        }
+        int fileID = buffer.getInt();
+        int index = buffer.getInt();
+        Integer file = indexByID.get(fileID);
+        if (file == null || index < 0 || index >= getNumPieces(file)) {
+            throw new IOException("Unknown piece " + index + " of file " + fileID);
+        }
+        return firstPiece[file] + index;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Load test for a whole swarm in one JVM: N peers on loopback ports, the first one has the file, everybody else
+// downloads it. Reports when each peer had the whole file, its download and upload throughput, and what the swarm
+// cost the process: CPU time, GC, peak heap, threads and resident memory.
+// Everything runs in a temporary directory that is deleted afterwards.
+// Files=N splits the data into N files shared through a FileList, over the same connections.
+//
+// Usage: java SwarmBenchmark [peers] [fileMiB] [Common.cfg settings as Key=Value...] [Files=N]
+// EX: java SwarmBenchmark 16 64 PieceSize=262144 NetworkEngine=nio
+// EX: java SwarmBenchmark 8 64 Files=100
+public class SwarmBenchmark {
+    private static final int FIRST_PEER_ID = 1001;
+    private static final long TIMEOUT_MINUTES = 10;
+
+    public static void main(String[] args) throws Exception {
+        int numPeers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : 32) * 1024 * 1024;
+
+        Map<String, String> config = new HashMap<>();
+        config.put("NumberOfPreferredNeighbors", "4");
+        config.put("UnchokingInterval", "1");
+        config.put("OptimisticUnchokingInterval", "1");
+        config.put("FileName", "swarm.dat");
+        config.put("FileSize", String.valueOf(fileSize));
+        config.put("PieceSize", "262144");
+        config.put("Checkpoint", "false");
+        config.put("Jmx", "false");
+        config.put("MetricsSnapshotInterval", "0");
+        config.put("LogLevel", "warn");
+        for (int i = 2; i < args.length; i++) {
+            String[] setting = args[i].split("=", 2);
+            config.put(setting[0], setting[1]);
+        }
+        int numFiles = Integer.parseInt(config.getOrDefault("Files", "1"));
+        config.remove("Files");
+
+        Path directory = Files.createTempDirectory("swarm");
+        try {
+            run(numPeers, fileSize, numFiles, config, directory);
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void run(int numPeers, long fileSize, int numFiles, Map<String, String> config, Path directory) throws Exception {
+        Log.start(Log.Level.fromConfig(config.get("LogLevel")), Log.Overflow.DROP, 8192, 256, 100);
+
+        List<PeerInfo> peerInfos = new ArrayList<>();
+        List<Integer> ports = freePorts(numPeers);
+        for (int i = 0; i < numPeers; i++) {
+            peerInfos.add(new PeerInfo(FIRST_PEER_ID + i, "127.0.0.1", ports.get(i), i == 0));
+        }
+        List<String> fileNames = new ArrayList<>();
+        if (numFiles > 1) {
+            // Equal parts, the last one takes the remainder
+            List<String> fileList = new ArrayList<>();
+            for (int i = 0; i < numFiles; i++) {
+                long size = i < numFiles - 1 ? fileSize / numFiles : fileSize - fileSize / numFiles * (numFiles - 1);
+                fileNames.add("swarm-" + i + ".dat");
+                fileList.add(i + " swarm-" + i + ".dat " + size);
+                writeRandomFile(directory.resolve("peer_" + FIRST_PEER_ID).resolve(fileNames.get(i)), size, i);
+            }
+            Files.write(directory.resolve("swarm.files"), fileList);
+            config.put("FileList", "swarm.files");
+        } else {
+            fileNames.add(config.get("FileName"));
+            writeRandomFile(directory.resolve("peer_" + FIRST_PEER_ID).resolve(config.get("FileName")), fileSize, 0);
+        }
+
+        List<peerProcess> peers = new ArrayList<>();
+        for (PeerInfo info : peerInfos) {
+            peers.add(new peerProcess(info.peerID, peerInfos, config, directory));
+        }
+        int pieceSize = Integer.parseInt(config.get("PieceSize"));
+        System.out.printf("%d peers, %.1f MiB in %d files, %d pieces of %d KiB, %s engine, %s threads%n", numPeers,
+                fileSize / 1048576.0, numFiles, peers.get(0).getNumPieces(), pieceSize / 1024,
+                config.getOrDefault("NetworkEngine", "blocking"), config.getOrDefault("ThreadMode", "platform"));
+
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+        threads.resetPeakThreadCount();
+        long cpuBefore = processCpuNanos(os);
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+
+        // Earlier peers first, every peer connects to the ones listed before it
+        long start = System.nanoTime();
+        for (peerProcess peer : peers) {
+            peer.start();
+        }
+
+        // One waiter per peer, so each completion is timed when it happens and not when the previous peer is done
+        long[] doneNanos = new long[numPeers];
+        List<Thread> waiters = new ArrayList<>();
+        for (int i = 0; i < numPeers; i++) {
+            int index = i;
+            Thread waiter = new Thread(() -> {
+                try {
+                    if (peers.get(index).awaitDownload(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                        doneNanos[index] = System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiter.start();
+            waiters.add(waiter);
+        }
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+        long end = System.nanoTime();
+
+        long cpuNanos = processCpuNanos(os) - cpuBefore;
+        long gcCollections = gcCount() - gcCountBefore;
+        long gcTime = gcMillis() - gcMillisBefore;
+        long heapPeak = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            heapPeak += pool.getPeakUsage().getUsed();
+        }
+        int peakThreads = threads.getPeakThreadCount();
+        long rssKB = residentKB();
+
+        System.out.printf("%-6s %10s %12s %10s %10s %8s%n", "peer", "done(ms)", "down(MiB/s)", "down(MiB)", "up(MiB)", "intact");
+        int complete = 0;
+        long lastDone = 0;
+        for (int i = 0; i < numPeers; i++) {
+            peerProcess peer = peers.get(i);
+            PeerMetrics metrics = peer.getMetrics();
+            double downloaded = metrics.getBytesDownloaded() / 1048576.0;
+            double uploaded = metrics.getBytesUploaded() / 1048576.0;
+            if (i == 0) {
+                System.out.printf("%-6d %10s %12s %10.1f %10.1f %8s%n", peer.getPeerID(), "seed", "-", downloaded, uploaded, "-");
+                continue;
+            }
+            if (doneNanos[i] == 0) {
+                System.out.printf("%-6d %10s %12s %10.1f %10.1f %8s%n", peer.getPeerID(), "timeout", "-", downloaded, uploaded, "-");
+                continue;
+            }
+            complete++;
+            long doneMillis = (doneNanos[i] - start) / 1_000_000;
+            lastDone = Math.max(lastDone, doneNanos[i]);
+            boolean intact = true;
+            for (String fileName : fileNames) {
+                Path original = directory.resolve("peer_" + FIRST_PEER_ID).resolve(fileName);
+                intact &= Files.mismatch(original, directory.resolve("peer_" + peer.getPeerID()).resolve(fileName)) == -1;
+            }
+            System.out.printf("%-6d %10d %12.1f %10.1f %10.1f %8s%n", peer.getPeerID(), doneMillis,
+                    fileSize / 1048576.0 / Math.max(1, doneMillis) * 1000, downloaded, uploaded, intact ? "yes" : "NO");
+        }
+
+        double seconds = (end - start) / 1e9;
+        if (complete == numPeers - 1) {
+            System.out.printf("Full distribution after %d ms, %.1f MiB/s delivered to the swarm%n", (lastDone - start) / 1_000_000,
+                    fileSize * (numPeers - 1) / 1048576.0 / ((lastDone - start) / 1e9));
+        } else {
+            System.out.printf("Only %d of %d peers got the whole file within %d minutes%n", complete, numPeers - 1, TIMEOUT_MINUTES);
+        }
+        System.out.printf("CPU %.1f s (%.1f cores on average), GC %d collections in %d ms, heap peak %d MB, threads peak %d, rss %d MB%n",
+                cpuNanos / 1e9, cpuNanos / 1e9 / seconds, gcCollections, gcTime, heapPeak / (1024 * 1024), peakThreads,
+                rssKB / 1024);
+
+        for (peerProcess peer : peers) {
+            peer.close();
+        }
+        Log.close();
+    }
+
+    // Ports nobody listens on right now. All of them are held open until the last one is found, so none repeats.
+    private static List<Integer> freePorts(int count) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        List<Integer> ports = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                sockets.add(socket);
+                ports.add(socket.getLocalPort());
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+        return ports;
+    }
+
+    private static void writeRandomFile(Path path, long size, long seed) throws IOException {
+        Files.createDirectories(path.getParent());
+        SplittableRandom random = new SplittableRandom(42 + seed);
+        byte[] chunk = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(path)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                for (int i = 0; i < chunk.length; i += 8) {
+                    long value = random.nextLong();
+                    for (int b = 0; b < 8; b++) {
+                        chunk[i + b] = (byte) (value >>> (8 * b));
+                    }
+                }
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    private static long processCpuNanos(OperatingSystemMXBean os) {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0; // Not available on this JVM
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long residentKB() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+// Compares platform and virtual threads for the blocking, thread-per-connection networking used by peerProcess.
+// Opens N loopback connections, each side served by its own thread exactly like handleClientConnection/handlePeerCommunication,
+// then does a number of 4 byte ping-pong round trips per connection.
+// Reports live threads, heap, resident memory and OS context switches (summed over /proc/self/task, Linux only).
+//
+// Usage: java ThreadModeBenchmark <platform|virtual> [rounds] [connections...]
+// EX: java ThreadModeBenchmark virtual 20 50 500 5000
+public class ThreadModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        List<Integer> connectionCounts = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            connectionCounts.add(Integer.parseInt(args[i]));
+        }
+        if (connectionCounts.isEmpty()) {
+            connectionCounts.addAll(List.of(50, 500, 5000));
+        }
+
+        PeerThreads peerThreads = new PeerThreads(mode, "bench-");
+        String actualMode = peerThreads.isVirtual() ? "virtual" : "platform";
+
+        System.out.printf("%-9s %7s %8s %10s %9s %12s %13s %10s%n",
+                "mode", "conns", "threads", "heap(MB)", "rss(MB)", "ctxSwitches", "ctx/roundtrip", "time(ms)");
+        for (int connections : connectionCounts) {
+            runRound(peerThreads, actualMode, connections, rounds);
+        }
+    }
+
+    private static void runRound(PeerThreads peerThreads, String mode, int connections, int rounds) throws Exception {
+        Executor executor = peerThreads.newThreadPerTaskExecutor();
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(connections);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Socket> sockets = new ArrayList<>();
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), connections);
+            InetSocketAddress address = (InetSocketAddress) serverChannel.getLocalAddress();
+
+            for (int i = 0; i < connections; i++) {
+                Socket client = SocketChannel.open(address).socket();
+                Socket server = serverChannel.accept().socket();
+                sockets.add(client);
+                sockets.add(server);
+
+                // Server side: echo until the connection is closed, like a peer's read loop
+                executor.execute(() -> echo(server));
+                // Client side: wait for the start signal, do the round trips, then stay alive until measured
+                executor.execute(() -> pingPong(client, rounds, go, finished, release));
+            }
+
+            Thread.sleep(200); // Let every thread reach its blocking read
+            long ctxBefore = contextSwitches();
+            long start = System.nanoTime();
+
+            go.countDown();
+            finished.await();
+
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            long ctxSwitches = contextSwitches() - ctxBefore;
+            int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+            System.gc();
+            long heapMB = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024 * 1024);
+            long rssMB = residentKB() / 1024;
+
+            System.out.printf("%-9s %7d %8d %10d %9d %12d %13.2f %10d%n", mode, connections, threads, heapMB, rssMB,
+                    ctxSwitches, (double) ctxSwitches / ((long) connections * rounds), elapsedMillis);
+        } finally {
+            release.countDown();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+        Thread.sleep(500); // Give the handler threads time to exit before the next round
+    }
+
+    private static void echo(Socket socket) {
+        try {
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            while (true) {
+                dos.writeInt(dis.readInt());
+                dos.flush();
+            }
+        } catch (IOException e) {
+            // Connection closed at the end of the round
+        }
+    }
+
+    private static void pingPong(Socket socket, int rounds, CountDownLatch go, CountDownLatch finished, CountDownLatch release) {
+        try {
+            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            go.await();
+            for (int i = 0; i < rounds; i++) {
+                dos.writeInt(i);
+                dos.flush();
+                dis.readInt();
+            }
+            finished.countDown();
+            release.await();
+        } catch (IOException | InterruptedException e) {
+            finished.countDown();
+        }
+    }
+
+    // Voluntary + involuntary context switches of every live thread in this process
+    private static long contextSwitches() {
+        long total = 0;
+        try (var tasks = Files.list(Path.of("/proc/self/task"))) {
+            for (Path task : (Iterable<Path>) tasks::iterator) {
+                try {
+                    for (String line : Files.readAllLines(task.resolve("status"))) {
+                        if (line.startsWith("voluntary_ctxt_switches") || line.startsWith("nonvoluntary_ctxt_switches")) {
+                            total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        }
+                    }
+                } catch (IOException e) {
+                    // Thread exited while we were reading it
+                }
+            }
+        } catch (IOException e) {
+            return -1; // Not on Linux
+        }
+        return total;
+    }
+
+    private static long residentKB() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket without a lock. The whole state is one AtomicLong: the time by which every byte granted so far is paid
+// for at the configured rate (GCRA). The bucket is full while that time is burst worth of nanoseconds or more in the
+// past, and a grant only has to wait for what the bucket doesn't have. Granting a message is one CAS, whatever its size.
+public class TokenBucket {
+    private final long bytesPerSecond;
+    private final double nanosPerByte;
+    private final long burstNanos;
+    private final AtomicLong paidUntil;
+
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException("Invalid token bucket: " + bytesPerSecond + " bytes/s, burst " + burstBytes);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.nanosPerByte = 1e9 / bytesPerSecond;
+        this.burstNanos = cost(burstBytes);
+        this.paidUntil = new AtomicLong(System.nanoTime() - burstNanos); // Starts out full
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // Takes the bytes even if the bucket doesn't have them yet. Returns the nanoseconds the caller has to wait before
+    // sending them, the next caller queues up behind that.
+    public long reserve(int bytes) {
+        long cost = cost(bytes);
+        while (true) {
+            long now = System.nanoTime();
+            long current = paidUntil.get();
+            long next = Math.max(current, now - burstNanos) + cost;
+            if (paidUntil.compareAndSet(current, next)) {
+                return Math.max(0, next - burstNanos - now);
+            }
+        }
+    }
+
+    // Takes the bytes only if the bucket has them. Returns 0 if it did, otherwise the nanoseconds until it will.
+    public long tryAcquire(int bytes) {
+        long cost = cost(bytes);
+        while (true) {
+            long now = System.nanoTime();
+            long current = paidUntil.get();
+            long next = Math.max(current, now - burstNanos) + cost;
+            long wait = next - burstNanos - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (paidUntil.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    // Gives back bytes that were taken but not used
+    public void refund(int bytes) {
+        paidUntil.addAndGet(-cost(bytes));
+    }
+
+    private long cost(long bytes) {
+        return (long) (bytes * nanosPerByte);
+    }
+}
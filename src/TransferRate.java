@@ -0,0 +1,39 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Byte counter for one direction of one neighbor, plus a smoothed rate.
+// record() is called on every PIECE/BLOCK and only touches a LongAdder, so the hot path never takes a lock.
+// sample() is called once per unchoking interval and turns the bytes since the last sample into an EWMA rate.
+public class TransferRate {
+    private final LongAdder totalBytes = new LongAdder();
+    private long bytesAtLastSample = 0;
+    private long lastSampleNanos = System.nanoTime();
+    private volatile double bytesPerSecond = 0;
+
+    public void record(long bytes) {
+        totalBytes.add(bytes);
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.sum();
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // smoothing is the weight of the newest interval, 1 means no smoothing at all
+    public synchronized void sample(double smoothing) {
+        long now = System.nanoTime();
+        long total = totalBytes.sum();
+        double seconds = (now - lastSampleNanos) / 1_000_000_000.0;
+        if (seconds <= 0) {
+            return;
+        }
+
+        double intervalRate = (total - bytesAtLastSample) / seconds;
+        bytesPerSecond = bytesPerSecond + smoothing * (intervalRate - bytesPerSecond);
+
+        bytesAtLastSample = total;
+        lastSampleNanos = now;
+    }
+}
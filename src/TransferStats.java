@@ -0,0 +1,22 @@
+// Snapshot of the transfer counters of one neighbor, for monitoring
+public class TransferStats {
+    public final int peerID;
+    public final long bytesDownloaded;
+    public final long bytesUploaded;
+    public final double downloadRate; // bytes per second, smoothed over unchoking intervals
+    public final double uploadRate;
+
+    public TransferStats(int peerID, long bytesDownloaded, long bytesUploaded, double downloadRate, double uploadRate) {
+        this.peerID = peerID;
+        this.bytesDownloaded = bytesDownloaded;
+        this.bytesUploaded = bytesUploaded;
+        this.downloadRate = downloadRate;
+        this.uploadRate = uploadRate;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("peer %d: down %d bytes (%.1f KB/s), up %d bytes (%.1f KB/s)",
+                peerID, bytesDownloaded, downloadRate / 1024, bytesUploaded, uploadRate / 1024);
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Leechers write into <file>.part, a sparse file of the full size. A piece is collected in memory while its blocks
+// arrive and only written once it is verified (commitPiece), with a positional write on a dedicated I/O thread,
+// so neither the reader threads nor the verifier ever wait for the disk.
+// Once every piece is written, flush forces the file and renames it to its real name: finishing the download is
+// a metadata change instead of writing the whole file out. Seeders read the existing file through the channel.
+public class WriteThroughPieceStore implements PieceStore {
+    private final long fileSize;
+    private final int pieceSize;
+    private final int numPieces;
+    private final boolean readOnly;
+    private final Path target;
+    private final Path partPath;
+    private final FileChannel channel;
+    private final boolean openedExistingData;
+
+    private final Map<Integer, ByteBuffer> stagedPieces = new ConcurrentHashMap<>(); // Downloading, or waiting for their write
+    private final ExecutorService ioExecutor;
+    private final boolean ownsExecutor;
+    private final BitSet writtenPieces = new BitSet(); // Pieces that are in the file, guarded by itself
+    private volatile IOException writeFailure; // First failed background write, reported by the next flush
+    private volatile boolean renamed;
+
+    public WriteThroughPieceStore(String filePath, long fileSize, int pieceSize, boolean hasFile) throws IOException {
+        this(filePath, fileSize, pieceSize, hasFile, null);
+    }
+
+    // sharedExecutor lets several stores write on one I/O thread, it has to be single threaded for flush to work.
+    // Null starts a thread for this store only.
+    public WriteThroughPieceStore(String filePath, long fileSize, int pieceSize, boolean hasFile,
+                                  ExecutorService sharedExecutor) throws IOException {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.numPieces = (int) ((fileSize + pieceSize - 1) / pieceSize);
+        this.target = Path.of(filePath);
+        this.partPath = Path.of(filePath + ".part");
+
+        File targetFile = target.toFile();
+        if (hasFile && targetFile.length() < fileSize) {
+            throw new IOException("File " + filePath + " is smaller than the configured FileSize " + fileSize);
+        }
+
+        // A finished download from an earlier run has no .part anymore, it is served like a seeder's file
+        this.renamed = hasFile || (!Files.exists(partPath) && targetFile.isFile() && targetFile.length() == fileSize);
+        this.readOnly = hasFile;
+
+        if (readOnly) {
+            this.channel = FileChannel.open(target, StandardOpenOption.READ);
+            this.openedExistingData = true;
+            this.ioExecutor = null;
+            this.ownsExecutor = false;
+        } else {
+            Path dataPath = renamed ? target : partPath;
+            this.openedExistingData = Files.isRegularFile(dataPath) && Files.size(dataPath) == fileSize;
+            this.channel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() != fileSize) {
+                // Sparse pre-allocation: the size is set, the blocks are only allocated as pieces get written
+                channel.truncate(0);
+                channel.write(ByteBuffer.allocate(1), fileSize - 1);
+            }
+            this.ownsExecutor = sharedExecutor == null;
+            this.ioExecutor = ownsExecutor ? Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "piece-io");
+                thread.setDaemon(true);
+                return thread;
+            }) : sharedExecutor;
+        }
+    }
+
+    @Override
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    @Override
+    public int getPieceLength(int pieceIndex) {
+        if (pieceIndex == numPieces - 1) { // Last piece might be smaller
+            return (int) (fileSize - (long) pieceSize * pieceIndex);
+        }
+        return pieceSize;
+    }
+
+    private long positionOf(int pieceIndex) {
+        return (long) pieceIndex * pieceSize;
+    }
+
+    @Override
+    public byte[] readPiece(int pieceIndex) throws IOException {
+        return readBlock(pieceIndex, 0, getPieceLength(pieceIndex));
+    }
+
+    @Override
+    public byte[] readBlock(int pieceIndex, int offset, int length) throws IOException {
+        byte[] block = new byte[length];
+        ByteBuffer staged = stagedPieces.get(pieceIndex);
+        if (staged != null) {
+            staged.get(offset, block);
+        } else {
+            readFully(ByteBuffer.wrap(block), positionOf(pieceIndex) + offset);
+        }
+        return block;
+    }
+
+    @Override
+    public ByteBuffer sliceBlock(int pieceIndex, int offset, int length) throws IOException {
+        ByteBuffer staged = stagedPieces.get(pieceIndex);
+        if (staged != null) {
+            // Still in memory, hand out a view. The buffer is never reused, so the view stays valid after the write.
+            return staged.slice(offset, length).asReadOnlyBuffer();
+        }
+        ByteBuffer block = ByteBuffer.allocate(length);
+        readFully(block, positionOf(pieceIndex) + offset);
+        return block.flip().asReadOnlyBuffer();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    @Override
+    public void writePiece(int pieceIndex, byte[] pieceContent) throws IOException {
+        if (pieceContent.length != getPieceLength(pieceIndex)) {
+            throw new IOException("Piece " + pieceIndex + " has length " + pieceContent.length + ", expected " + getPieceLength(pieceIndex));
+        }
+        writeBlock(pieceIndex, 0, ByteBuffer.wrap(pieceContent));
+    }
+
+    @Override
+    public void writeBlock(int pieceIndex, int offset, ByteBuffer blockContent) throws IOException {
+        if (readOnly) {
+            throw new IOException("Piece store is read only, we already have the complete file.");
+        }
+        int length = blockContent.remaining();
+        if (offset < 0 || offset + length > getPieceLength(pieceIndex)) {
+            throw new IOException("Block at offset " + offset + " doesn't fit into piece " + pieceIndex);
+        }
+        ByteBuffer staged = stagedPieces.computeIfAbsent(pieceIndex, i -> ByteBuffer.allocate(getPieceLength(i)));
+        staged.put(offset, blockContent, blockContent.position(), length);
+    }
+
+    // The piece is verified, write it at its offset in the background. Until the write is done reads are served from memory.
+    // A piece that isn't staged was recovered from an earlier run and is already in the file.
+    @Override
+    public void commitPiece(int pieceIndex) {
+        if (readOnly) {
+            return;
+        }
+        ByteBuffer staged = stagedPieces.get(pieceIndex);
+        if (staged == null) {
+            markWritten(pieceIndex);
+            return;
+        }
+        ioExecutor.execute(() -> {
+            try {
+                ByteBuffer content = staged.duplicate().clear();
+                long position = positionOf(pieceIndex);
+                while (content.hasRemaining()) {
+                    channel.write(content, position + content.position());
+                }
+                markWritten(pieceIndex);
+                stagedPieces.remove(pieceIndex, staged);
+            } catch (IOException e) {
+                if (writeFailure == null) {
+                    writeFailure = e;
+                }
+                Log.warn("Failed to write piece " + pieceIndex, e);
+            }
+        });
+    }
+
+    private void markWritten(int pieceIndex) {
+        synchronized (writtenPieces) {
+            writtenPieces.set(pieceIndex);
+        }
+    }
+
+    private boolean allPiecesWritten() {
+        synchronized (writtenPieces) {
+            return writtenPieces.cardinality() == numPieces;
+        }
+    }
+
+    @Override
+    public boolean supportsTransfer() {
+        return true;
+    }
+
+    @Override
+    public void transferBlock(int pieceIndex, int offset, int length, WritableByteChannel target) throws IOException {
+        ByteBuffer staged = stagedPieces.get(pieceIndex);
+        if (staged != null) {
+            ByteBuffer block = staged.slice(offset, length);
+            while (block.hasRemaining()) {
+                target.write(block);
+            }
+            return;
+        }
+
+        long position = positionOf(pieceIndex) + offset;
+        long remaining = length;
+        // transferTo may send less than asked for, keep going until the whole block is out
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return true;
+    }
+
+    @Override
+    public boolean openedExistingData() {
+        return openedExistingData;
+    }
+
+    // Waits for the writes committed so far and forces them to disk. Once every piece is written the .part file
+    // gets its real name, the file is only ever visible under that name when it is complete.
+    @Override
+    public void flush() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        try {
+            ioExecutor.submit(() -> { }).get(); // Single thread, everything committed before is written once this ran
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for piece writes", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+        channel.force(true);
+
+        synchronized (this) {
+            if (!renamed && allPiecesWritten()) {
+                Files.move(partPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                renamed = true;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        if (ownsExecutor) {
+            ioExecutor.shutdown();
+        }
+        channel.close();
+    }
+}
@@ -1,132 +1,498 @@
-import java.awt.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.List;
-import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.ByteBuffer;
-import java.util.Random;
-import java.util.stream.IntStream;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.stream.Collectors;
+import java.nio.file.Path;
+
+// One peer. Everything it uses is held by the instance, so several peers can run in one JVM (see SwarmBenchmark):
+// create it with the peer list and the Common.cfg settings, start() it, and close() it to stop. main() runs a single
+// peer with the configuration files in the working directory.
+public class peerProcess implements AutoCloseable {
+    private static final int MANIFEST_WARNING_SECONDS = 10; // How often a peer stuck without a MANIFEST says so
 
-public class peerProcess {
     // Peer Info for THIS peer process
-    private static int peerID;
-    private static String hostName;
-    private static int listeningPort;
-    private static boolean hasFile;
-    private BitSet bitfield;
+    private final int peerID;
+    private String hostName;
+    private int listeningPort;
+    private volatile boolean hasFile; // Flipped by the reader thread that completes the download
+    private final Path peerDirectory; // peer_<id>, the shared file and everything kept next to it
+    private PieceStateTable pieceStates; // Our bitfield plus which pieces are claimed for download, lock-free
+    private Log.EventFile eventLog; // log_peer_<id>.log, null if it couldn't be opened
     private int numPieces;
-    private Map<Integer, Neighbor> neighbors = new HashMap<>(); // Used to maintain neighbors that are CONNECTED
-    private Map<Integer, byte[]> filePieces = new HashMap<>();
+    private Map<Integer, Neighbor> neighbors = new ConcurrentHashMap<>(); // Used to maintain neighbors that are CONNECTED
+    private PieceStore pieceStore; // Storage for the pieces of the shared file
+    private PiecePicker piecePicker; // Availability counts and the piece selection policy
+    private ChokeScheduler chokeScheduler; // Preferred and optimistic unchoke slots
+    private BandwidthLimiter uploadLimiter; // Enforced by the writers before every PIECE/BLOCK
+    private BandwidthLimiter downloadLimiter; // Enforced before every REQUEST, on the size of the answer
+    private PeerMetrics peerMetrics; // Counters published over JMX and in the snapshot file
+    private final Map<Integer, PartialPiece> partialPieces = new ConcurrentHashMap<>(); // Pieces we are downloading right now
+    private BufferPool bufferPool; // Encoded control frames and per-connection read buffers
+    private PieceCheckpoint checkpoint; // Pieces we already have on disk, only for leechers with a persistent store
+    private volatile PieceManifest pieceManifest; // Digests to check completed pieces against, null until we have it
+    private ForkJoinPool verifierPool; // Hashes pieces off the reader threads
+    private final BitSet pendingHaves = new BitSet(); // Completed pieces for the next HAVE_MULTI, guarded by itself
 
     // List of all peers read from PeerInfo
     // contains SELF in the arrayList as well
-    private static final List<PeerInfo> allPeers = new ArrayList<>();
+    private final List<PeerInfo> allPeers;
+    // The same peers by ID, built once so handshakes can be checked without walking the list
+    private final Map<Integer, PeerInfo> peersByID = new HashMap<>();
 
     // Common Configs
-    private static int numPreferredNeighbors;
-    private static int optimisticUnchokingInterval;
-    private static int pieceSize;
-    private static String fileName;
-    private static int unchokingInterval;
-    private static int fileSize;
+    private int numPreferredNeighbors;
+    private int optimisticUnchokingInterval;
+    private int pieceSize;
+    private String fileName;
+    private int unchokingInterval;
+    private long fileSize; // All files together with a FileList
+    private SharedFiles files; // What is shared and how piece indexes are addressed on the wire
+    private String pieceStoreType;
+    private boolean zeroCopy;
+    private String networkEngine;
+    private int nioThreads;
+    private String threadMode;
+    private int minRequestWindow;
+    private int maxRequestWindow;
+    private PiecePicker.Policy pieceSelectionPolicy;
+    private int blockLength; // Request granularity, PieceSize unless BlockSize is set
+    private boolean useBlocks; // Pieces are fetched as several blocks with REQUEST_BLOCK/BLOCK
+    private int endgameThreshold; // Below this many missing pieces, requests go to every neighbor that has the piece
+    private double rateSmoothing; // Weight of the latest unchoking interval in the per-neighbor transfer rates
+    private boolean directBuffers; // Pool direct ByteBuffers for frames and read buffers
+    private boolean checkpointEnabled;
+    private int checkpointInterval; // Milliseconds between checkpoint syncs
+    private PieceManifest.Algorithm pieceHash; // null when pieces aren't verified
+    private int verifyThreads;
+    private int haveBatchInterval; // Milliseconds between HAVE_MULTI flushes, 0 sends plain HAVEs to everybody
+    private ConnectPolicy connectPolicy; // Timeouts and retries for connecting to the peers listed before us
+    private boolean combinedHandshake; // Our BITFIELD goes out in the same write as our handshake
+    private int maxUnchoked; // Preferred plus optimistic neighbors that may be unchoked at once
+    private long uploadLimit; // Bytes per second, 0 = unlimited
+    private long uploadLimitPerNeighbor;
+    private long downloadLimit;
+    private long downloadLimitPerNeighbor;
+    private boolean jmxEnabled;
+    private int metricsSnapshotInterval; // Milliseconds between metrics snapshot files, 0 = none
+
+    private ServerSocketChannel serverChannel; // Only used when NetworkEngine is blocking
+    private final CountDownLatch downloadComplete = new CountDownLatch(1); // Released once we have every piece
+    private volatile boolean closed;
+
+    // Outbound connection setup, for the summary once every earlier peer is connected or given up on
+    private final AtomicInteger pendingConnects = new AtomicInteger();
+    private final AtomicInteger establishedConnects = new AtomicInteger();
+    private volatile long connectSetupStart;
 
-    // Countdown latch used to ensure StartServer is ran before connct to previous peers for concurrency issues.
-    private final CountDownLatch latch = new CountDownLatch(1);
-
-    private static FileWriter logWriter;
 
     // Scheduler for choking and unchoking
     private ScheduledExecutorService scheduledExecutorService;
 
-    public peerProcess(int peerID) { // Constructor
-        this.peerID = peerID;
+    // Runs the per-connection work (handshakes, read loops, outbound connects) on platform or virtual threads
+    private PeerThreads peerThreads;
+    private Executor connectionExecutor;
 
-        // Load PeerInfo
-        loadPeerInfo("PeerInfo.cfg");
-        // Setting current peer
-        setCurrentPeerInfo(peerID);
+    // Only used when NetworkEngine is nio
+    private NioEngine nioEngine;
 
-        // Load CommonConfig
-        Map<String, String> commonConfig = loadConfiguration("Common.cfg");
+    // Reads PeerInfo.cfg and Common.cfg from the working directory, the peer's files go into peer_<id> there
+    public peerProcess(int peerID) {
+        this(peerID, loadPeerInfo("PeerInfo.cfg"), loadConfiguration("Common.cfg"), Path.of(""));
+    }
 
-        // Parse and store config parameters
-        this.numPreferredNeighbors = Integer.parseInt(commonConfig.get("NumberOfPreferredNeighbors"));
-        this.optimisticUnchokingInterval = Integer.parseInt(commonConfig.get("OptimisticUnchokingInterval"));
-        this.pieceSize = Integer.parseInt(commonConfig.get("PieceSize"));
-        this.fileName = commonConfig.get("FileName");
-        this.unchokingInterval = Integer.parseInt(commonConfig.get("UnchokingInterval"));
-        this.fileSize = Integer.parseInt(commonConfig.get("FileSize"));
+    // peers are the lines of PeerInfo.cfg including this peer, commonConfig the Common.cfg settings by name.
+    // The peer's files go into directory/peer_<id>, a peer that has the file expects it there.
+    public peerProcess(int peerID, List<PeerInfo> peers, Map<String, String> commonConfig, Path directory) {
+        Integer previousPeer = Log.enterPeer(peerID); // Lines logged here and by the threads started here carry our ID
+        try {
+            this.peerID = peerID;
+            this.peerDirectory = directory.resolve("peer_" + peerID);
+            try {
+                this.eventLog = Log.openEventFile(directory.resolve("log_peer_" + peerID + ".log").toString()); // Append mode
+            } catch (IOException e) {
+                Log.warn("Failed to create log file for peer " + peerID, e);
+            }
 
-        // Calculate the number of pieces
-        this.numPieces = (int) Math.ceil((double) fileSize / pieceSize);
+            this.allPeers = new ArrayList<>(peers);
+            for (PeerInfo peer : allPeers) {
+                peersByID.put(peer.peerID, peer);
+            }
+            // Setting current peer
+            setCurrentPeerInfo(peerID);
+
+            // Parse and store config parameters
+            this.numPreferredNeighbors = Integer.parseInt(commonConfig.get("NumberOfPreferredNeighbors"));
+            this.optimisticUnchokingInterval = Integer.parseInt(commonConfig.get("OptimisticUnchokingInterval"));
+            this.pieceSize = Integer.parseInt(commonConfig.get("PieceSize"));
+            this.unchokingInterval = Integer.parseInt(commonConfig.get("UnchokingInterval"));
+            this.pieceStoreType = commonConfig.getOrDefault("PieceStore", "mapped"); // heap or mapped
+            this.zeroCopy = Boolean.parseBoolean(commonConfig.getOrDefault("ZeroCopy", "true"));
+            this.networkEngine = commonConfig.getOrDefault("NetworkEngine", "blocking"); // blocking or nio
+            this.nioThreads = Integer.parseInt(commonConfig.getOrDefault("NioThreads", "2"));
+            this.threadMode = commonConfig.getOrDefault("ThreadMode", "platform"); // platform or virtual
+            this.minRequestWindow = Integer.parseInt(commonConfig.getOrDefault("MinRequestWindow", "5"));
+            this.maxRequestWindow = Integer.parseInt(commonConfig.getOrDefault("MaxRequestWindow", "64"));
+            this.pieceSelectionPolicy = PiecePicker.Policy.fromConfig(commonConfig.getOrDefault("PieceSelectionPolicy", "rarest"));
+            int blockSize = Integer.parseInt(commonConfig.getOrDefault("BlockSize", "0")); // 0 = whole pieces
+            this.useBlocks = blockSize > 0 && blockSize < pieceSize;
+            this.blockLength = useBlocks ? blockSize : pieceSize;
+            this.endgameThreshold = Integer.parseInt(commonConfig.getOrDefault("EndgameThreshold", "5"));
+            this.rateSmoothing = Double.parseDouble(commonConfig.getOrDefault("RateSmoothing", "0.5"));
+            this.directBuffers = Boolean.parseBoolean(commonConfig.getOrDefault("DirectBuffers", "true"));
+            this.checkpointEnabled = Boolean.parseBoolean(commonConfig.getOrDefault("Checkpoint", "true"));
+            this.checkpointInterval = Integer.parseInt(commonConfig.getOrDefault("CheckpointInterval", "1000"));
+            this.pieceHash = PieceManifest.Algorithm.fromConfig(commonConfig.getOrDefault("PieceHash", "sha256"));
+            this.haveBatchInterval = Integer.parseInt(commonConfig.getOrDefault("HaveBatchInterval", "50"));
+            this.combinedHandshake = Boolean.parseBoolean(commonConfig.getOrDefault("CombinedHandshake", "true"));
+            this.maxUnchoked = Integer.parseInt(commonConfig.getOrDefault("MaxUnchoked", String.valueOf(numPreferredNeighbors + 1)));
+            this.uploadLimit = Long.parseLong(commonConfig.getOrDefault("UploadLimit", "0"));
+            this.uploadLimitPerNeighbor = Long.parseLong(commonConfig.getOrDefault("UploadLimitPerNeighbor", "0"));
+            this.downloadLimit = Long.parseLong(commonConfig.getOrDefault("DownloadLimit", "0"));
+            this.downloadLimitPerNeighbor = Long.parseLong(commonConfig.getOrDefault("DownloadLimitPerNeighbor", "0"));
+            this.jmxEnabled = Boolean.parseBoolean(commonConfig.getOrDefault("Jmx", "true"));
+            this.metricsSnapshotInterval = Integer.parseInt(commonConfig.getOrDefault("MetricsSnapshotInterval", "10000"));
+            this.connectPolicy = new ConnectPolicy(
+                    Integer.parseInt(commonConfig.getOrDefault("ConnectTimeout", "5000")),
+                    Integer.parseInt(commonConfig.getOrDefault("HandshakeTimeout", "5000")),
+                    Integer.parseInt(commonConfig.getOrDefault("ConnectAttempts", "10")),
+                    Long.parseLong(commonConfig.getOrDefault("ConnectBackoff", "250")),
+                    Long.parseLong(commonConfig.getOrDefault("ConnectBackoffMax", "8000")));
+            this.verifyThreads = Integer.parseInt(commonConfig.getOrDefault("VerifyThreads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            if (rateSmoothing <= 0 || rateSmoothing > 1) {
+                throw new IllegalArgumentException("RateSmoothing must be in (0, 1]: " + rateSmoothing);
+            }
 
-        // Initialize the bitfield
-        this.bitfield = new BitSet(numPieces); // Initializes all at 0
+            // Either the single FileName or every file of a FileList, which then all share this peer's connections
+            String fileList = commonConfig.get("FileList");
+            if (fileList != null) {
+                try {
+                    this.files = SharedFiles.load(directory.resolve(fileList), pieceSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read the FileList " + fileList, e);
+                }
+                this.fileName = Path.of(fileList).getFileName().toString(); // Names the checkpoint and manifest of the whole list
+                this.fileSize = files.getTotalSize();
+            } else {
+                this.fileName = commonConfig.get("FileName");
+                this.fileSize = Long.parseLong(commonConfig.get("FileSize"));
+                this.files = SharedFiles.single(fileName, fileSize, pieceSize);
+            }
+
+            // Calculate the number of pieces
+            this.numPieces = files.getTotalPieces();
 
-        if (hasFile) {
-            initializeFilePieces();
-            for (int i = 0; i < this.numPieces; i++) {
-                bitfield.set(i); // turn all the bits to 1 if peer has file
+            // Initialize the bitfield, every piece starts out NEEDED
+            this.pieceStates = new PieceStateTable(numPieces);
+
+            this.peerMetrics = new PeerMetrics(peerID);
+            if (jmxEnabled) {
+                peerMetrics.registerMBeans();
+            }
+
+            initializePieceStore();
+            this.piecePicker = new PiecePicker(numPieces, pieceSelectionPolicy);
+            this.chokeScheduler = new ChokeScheduler(numPreferredNeighbors, maxUnchoked);
+            this.uploadLimiter = new BandwidthLimiter(uploadLimit, uploadLimitPerNeighbor, blockLength);
+            this.downloadLimiter = new BandwidthLimiter(downloadLimit, downloadLimitPerNeighbor, blockLength);
+            this.bufferPool = new BufferPool(directBuffers);
+            this.verifierPool = new ForkJoinPool(verifyThreads);
+
+            if (hasFile) {
+                for (int i = 0; i < this.numPieces; i++) {
+                    pieceStates.markHave(i); // turn all the bits to 1 if peer has file
+                    piecePicker.markHave(i);
+                }
+                Log.debug(() -> "TOTAL: " + this.numPieces);
+                Log.debug(() -> "Pieces we have NOW: " + pieceStates.getHaveCount());
+                createManifest();
+            }
+            else {
+                Log.info("We don't have file, calculated numPieces: " + numPieces);
+                resumeFromCheckpoint();
             }
-            System.out.println("TOTAL: " + this.numPieces);
-            System.out.println("Bitfield length NOW: " + bitfield.length());
+            if (isDownloadComplete()) {
+                downloadComplete.countDown();
+            }
+
+            peerThreads = new PeerThreads(threadMode, "peer-" + peerID + "-");
+            connectionExecutor = peerThreads.newThreadPerTaskExecutor();
+            Log.info("Using " + (peerThreads.isVirtual() ? "virtual" : "platform") + " threads");
+
+            // Initializing the scheduler
+            scheduledExecutorService = peerThreads.newScheduledExecutor(2); // 2 threads for unchoking and optimistic unchoking
+        } finally {
+            Log.restorePeer(previousPeer);
         }
-        else {
-            System.out.println("We don't have file, calculated numPieces: " + numPieces);
+    }
+
+    // Starts listening and connects to the peers listed before this one, the connections are set up in the background
+    public void start() throws IOException {
+        Integer previousPeer = Log.enterPeer(peerID);
+        try {
+            Log.info("This peer's ID: " + peerID + ", Host: " + hostName + ", Port: " + listeningPort + ", Has File: " + hasFile);
+            scheduledExecutorService.scheduleAtFixedRate(this::evaluatePreferredNeighbors, 0, unchokingInterval, TimeUnit.SECONDS);
+            scheduledExecutorService.scheduleAtFixedRate(this::selectOptimisticallyUnchokedNeighbor, 0, optimisticUnchokingInterval, TimeUnit.SECONDS);
+            if (haveBatchInterval > 0) {
+                scheduledExecutorService.scheduleWithFixedDelay(this::flushHaveBatch, haveBatchInterval, haveBatchInterval, TimeUnit.MILLISECONDS);
+            }
+            if (checkpoint != null) {
+                scheduledExecutorService.scheduleWithFixedDelay(this::syncCheckpoint, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+            }
+            if (metricsSnapshotInterval > 0) {
+                scheduledExecutorService.scheduleWithFixedDelay(this::writeMetricsSnapshot, metricsSnapshotInterval, metricsSnapshotInterval, TimeUnit.MILLISECONDS);
+            }
+            if (pieceHash != null && pieceManifest == null) {
+                scheduledExecutorService.scheduleWithFixedDelay(this::warnIfNoManifest, MANIFEST_WARNING_SECONDS, MANIFEST_WARNING_SECONDS, TimeUnit.SECONDS);
+            }
+
+            if (networkEngine.equalsIgnoreCase("nio")) {
+                startNioEngine();
+            } else {
+                startServer(); // Start listening to messages.
+                connectToPreviousPeers(); // Connect to all previous peers before it in the list.
+            }
+        } finally {
+            Log.restorePeer(previousPeer);
+        }
+    }
+
+    // Stops the peer: the schedulers, the listening socket and every connection, then the files are synced and closed.
+    // The peer's log file is closed last, the console log belongs to the process and stays open.
+    @Override
+    public synchronized void close() {
+        Integer previousPeer = Log.enterPeer(peerID);
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Log.info("Shutting down peer " + peerID);
+
+            scheduledExecutorService.shutdownNow();
+            if (serverChannel != null) {
+                try {
+                    serverChannel.close();
+                } catch (IOException e) {
+                    Log.warn("Failed to close the server socket", e);
+                }
+            }
+            if (nioEngine != null) {
+                nioEngine.shutdown();
+            }
+            for (Neighbor neighbor : neighbors.values()) {
+                neighbor.getOutboundQueue().close();
+                try {
+                    neighbor.getSocket().close(); // The reader notices and removes the neighbor
+                } catch (IOException e) {
+                    Log.warn("Failed to close connection to peer " + neighbor.getPeerID(), e);
+                }
+            }
+            verifierPool.shutdownNow();
+
+            syncCheckpoint();
+            writeMetricsSnapshot();
+            try {
+                if (checkpoint != null) {
+                    checkpoint.close();
+                }
+                if (pieceStore != null) {
+                    pieceStore.close();
+                }
+            } catch (IOException e) {
+                Log.warn("Failed to close the piece store", e);
+            }
+            peerMetrics.unregisterMBeans();
+            if (eventLog != null) {
+                eventLog.close();
+            }
+        } finally {
+            Log.restorePeer(previousPeer);
+        }
+    }
+
+    public int getPeerID() {
+        return peerID;
+    }
+
+    // Of all files together with a FileList
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    public PeerMetrics getMetrics() {
+        return peerMetrics;
+    }
+
+    // Waits until we have every piece and the file is on disk, false if the timeout ran out first
+    public boolean awaitDownload(long timeout, TimeUnit unit) throws InterruptedException {
+        return downloadComplete.await(timeout, unit);
+    }
+
+    // peer_<id>/metrics.properties, replaced as a whole every MetricsSnapshotInterval
+    private void writeMetricsSnapshot() {
+        if (metricsSnapshotInterval <= 0) {
+            return;
+        }
+        try {
+            peerMetrics.writeSnapshot(peerDirectory.resolve("metrics.properties"));
+        } catch (IOException e) {
+            Log.warn("Failed to write the metrics snapshot", e);
+        }
+    }
+
+    // Picks up the pieces an earlier run of this peer already downloaded, the BITFIELD we send then only has those
+    private void resumeFromCheckpoint() {
+        if (!checkpointEnabled) {
+            return;
+        }
+        if (pieceStore == null || !pieceStore.isPersistent()) {
+            Log.info("Checkpoint disabled, the " + pieceStoreType + " piece store doesn't keep pieces on disk");
+            return;
+        }
+
+        Path checkpointPath = peerDirectory.resolve(fileName + ".checkpoint");
+        try {
+            checkpoint = new PieceCheckpoint(checkpointPath, pieceStore, fileSize, pieceSize, pieceStore.openedExistingData());
+        } catch (IOException e) {
+            Log.warn("Failed to open checkpoint " + checkpointPath + ", resume is disabled", e);
+            return;
+        }
+
+        BitSet recovered = checkpoint.getRecoveredPieces();
+        loadManifest();
+        if (pieceManifest != null && !recovered.isEmpty()) {
+            // Whatever happened to the file while we were down, only pieces that still match their digest count
+            BitSet failed = verifyOnDisk(recovered);
+            if (!failed.isEmpty()) {
+                Log.warn(failed.cardinality() + " recovered pieces don't match the manifest, they are downloaded again");
+                recovered.andNot(failed);
+            }
+        }
+        for (int i = recovered.nextSetBit(0); i >= 0; i = recovered.nextSetBit(i + 1)) {
+            markPieceReceived(i);
+            piecePicker.markHave(i);
+            try {
+                pieceStore.commitPiece(i);
+            } catch (IOException e) {
+                Log.warn("Failed to commit recovered piece " + i, e);
+            }
+        }
+        if (!recovered.isEmpty()) {
+            Log.info("Resuming from checkpoint: " + recovered.cardinality() + " of " + numPieces + " pieces already on disk");
         }
+        if (isDownloadComplete()) {
+            Log.info("Checkpoint says the file is already complete");
+            hasFile = true;
+            if (pieceManifest == null) {
+                createManifest();
+            }
+        }
+    }
 
-        // Initializing the scheduler
-        scheduledExecutorService = Executors.newScheduledThreadPool(2); // 2 threads for unchoking and optimistic unchoking
+    // Peers with the whole file hash it once at startup, the digests are what every leecher checks its pieces against
+    private void createManifest() {
+        if (pieceHash == null || pieceStore == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            pieceManifest = PieceManifest.generate(pieceStore, pieceHash, pieceSize, fileSize, verifierPool);
+        } catch (IOException e) {
+            Log.warn("Failed to hash the file, neighbors won't get a manifest from us", e);
+            return;
+        }
+        logHashThroughput("Hashed", numPieces, fileSize, start);
+    }
 
-        scheduledExecutorService.scheduleAtFixedRate(this::evaluatePreferredNeighbors, 0, unchokingInterval, TimeUnit.SECONDS);
-        scheduledExecutorService.scheduleAtFixedRate(this::selectOptimisticallyUnchokedNeighbor, 0, optimisticUnchokingInterval, TimeUnit.SECONDS);
+    // A leecher keeps the manifest it was sent next to its checkpoint, so recovered pieces can be checked after a restart
+    private void loadManifest() {
+        if (pieceHash == null) {
+            return;
+        }
+        Path manifestPath = manifestPath();
+        try {
+            PieceManifest manifest = PieceManifest.load(manifestPath);
+            if (manifest != null && manifest.matches(numPieces, pieceSize, fileSize)) {
+                pieceManifest = manifest;
+                Log.info("Loaded " + manifest.getAlgorithm() + " piece manifest from " + manifestPath);
+            }
+        } catch (IOException e) {
+            Log.warn("Failed to read manifest " + manifestPath + ", waiting for a neighbor to send it", e);
+        }
+    }
+
+    // Returns the pieces whose content on disk doesn't match the manifest
+    private BitSet verifyOnDisk(BitSet pieces) {
+        long start = System.nanoTime();
+        long bytes = pieces.stream().mapToLong(pieceStore::getPieceLength).sum();
+        try {
+            BitSet failed = pieceManifest.verifyAll(pieceStore, pieces, verifierPool);
+            logHashThroughput("Verified", pieces.cardinality(), bytes, start);
+            return failed;
+        } catch (IOException e) {
+            Log.warn("Failed to verify the pieces on disk, they are downloaded again", e);
+            return (BitSet) pieces.clone();
+        }
     }
 
-    private void initializeFilePieces() {
+    private void logHashThroughput(String action, int pieces, long bytes, long startNanos) {
+        double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+        double mebibytes = bytes / (1024.0 * 1024.0);
+        Log.info(String.format("%s %d pieces (%.1f MiB) with %s in %.0f ms, %.1f MiB/s on %d threads",
+                action, pieces, mebibytes, pieceManifest.getAlgorithm(), seconds * 1000, mebibytes / seconds, verifierPool.getParallelism()));
+    }
+
+    private Path manifestPath() {
+        return peerDirectory.resolve(fileName + ".manifest");
+    }
+
+    void syncCheckpoint() {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.sync();
+        } catch (IOException e) {
+            Log.warn("Failed to write checkpoint", e);
+        }
+    }
+
+    private void initializePieceStore() {
         // Adjust the file path to include the peer directory
-        String directoryPath = "./peer_" + peerID + "/";
-        File directory = new File(directoryPath);
+        File directory = peerDirectory.toFile();
+        String filePath = peerDirectory.resolve(fileName).toString();
 
         // Ensure the directory exists
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
-                System.err.println("Failed to create directory for peer " + peerID);
+                Log.warn("Failed to create directory for peer " + peerID);
                 return;
             }
         }
 
-        File file = new File(directoryPath + fileName);
-        try (FileInputStream fis = new FileInputStream(file)) {
-            int numberOfPieces = (int) Math.ceil((double) this.fileSize / this.pieceSize);
-            // System.out.println("PASSED IN numPieces: " + numPieces);
-            // System.out.println("CALCULATED numPieces: " + numberOfPieces);
-
-            for (int pieceIndex = 0; pieceIndex < numberOfPieces; pieceIndex++) {
-                int currentPieceSize = this.pieceSize;
-                if (pieceIndex == numberOfPieces - 1) { // Last piece might be smaller
-                    currentPieceSize = (int) (fileSize - (long) this.pieceSize * pieceIndex);
-                }
-
-                byte[] piece = new byte[currentPieceSize];
-                fis.read(piece, 0, currentPieceSize);
-                this.filePieces.put(pieceIndex, piece);
+        try {
+            // Seeders serve the existing file, leechers get a store that the received pieces are written into
+            if (files.isMultiFile()) {
+                this.pieceStore = MultiFilePieceStore.open(pieceStoreType, peerDirectory, files, pieceSize, hasFile);
+                Log.info("Using " + pieceStoreType + " piece store for " + files.getFileCount() + " files in " + directory);
+                return;
             }
-            System.out.println("File pieces initialized successfully.");
-        } catch (FileNotFoundException e) {
-            System.err.println("File not found: " + directoryPath + fileName);
-            e.printStackTrace();
+            this.pieceStore = PieceStore.create(pieceStoreType, filePath, fileSize, pieceSize, hasFile);
+            Log.info("Using " + pieceStoreType + " piece store for " + filePath);
         } catch (IOException e) {
-            System.err.println("Error reading the file: " + directoryPath + fileName);
-            e.printStackTrace();
+            Log.warn("Error opening the file: " + filePath, e);
         }
     }
 
@@ -139,32 +505,30 @@ public class peerProcess {
         }
 
         int peerID = Integer.parseInt(args[0]);
+        Log.enterPeer(peerID); // The whole process is this peer, shutdown hooks included
         setUpDirectory(peerID);
-        setUpLogFile(peerID);
+        startLogging();
 
-        // After the log is created, shut down the logWriter
+        // After the log is created, write out whatever is still buffered on shutdown
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            try {
-                if (logWriter != null) {
-                    System.out.println("Closing log writer...");
-                    logWriter.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            Log.info("Closing log writer...");
+            Log.close();
         }));
 
         peerProcess process = new peerProcess(peerID);
+        Runtime.getRuntime().addShutdownHook(new Thread(process::syncCheckpoint)); // Don't lose the last batch on a normal exit
+        Runtime.getRuntime().addShutdownHook(new Thread(process::writeMetricsSnapshot));
 
-        // Now, the peerProcess has its own information set, and you can proceed to use it
-        System.out.println("This peer's ID: " + process.peerID + ", Host: " + process.hostName + ", Port: " + process.listeningPort + ", Has File: " + process.hasFile);
-
-        process.startServer(); // Start listening to messages.
-        process.connectToPreviousPeers(); // Connect to all previous peers before it in the list.
+        try {
+            process.start();
+        } catch (IOException e) {
+            Log.warn("Failed to start listening on port " + process.listeningPort, e);
+            process.close();
+        }
     }
 
     // Reading config
-    private static Map<String, String> loadConfiguration(String filePath) {
+    public static Map<String, String> loadConfiguration(String filePath) {
         Map<String, String> config = new HashMap<>();
 
         try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
@@ -178,13 +542,14 @@ public class peerProcess {
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.warn("Failed to read " + filePath, e);
         }
         return config;
     }
 
     // Reading peer info
-    private static void loadPeerInfo(String filePath) {
+    public static List<PeerInfo> loadPeerInfo(String filePath) {
+        List<PeerInfo> peers = new ArrayList<>();
         try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
             String line;
 
@@ -200,27 +565,27 @@ public class peerProcess {
                     // Create a new peerInfo object about peers
                     PeerInfo peerInfo = new PeerInfo(id, hostname, port, file);
                     // Add the peer information into our list.
-                    allPeers.add(peerInfo);
+                    peers.add(peerInfo);
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("Failed to read " + filePath, e);
         }
+        return peers;
     }
 
     // Setting process peer info
-    private static void setCurrentPeerInfo(int currentPeerID) {
+    private void setCurrentPeerInfo(int currentPeerID) {
         // We passed in the peerID to the constructor and read PeerInfo
-        // but now we need to go through allpeers to find the info that corresponds to the current peer
-        for (PeerInfo peerInfo : allPeers) {
-            if (peerInfo.peerID == currentPeerID) {
-                System.out.println(peerInfo.peerID);
-                peerID = peerInfo.peerID;
-                hostName = peerInfo.hostName;
-                listeningPort = peerInfo.listeningPort;
-                hasFile = peerInfo.hasFile;
-                break;
-            }
+        // but now we need to find the info that corresponds to the current peer
+        PeerInfo peerInfo = peersByID.get(currentPeerID);
+        if (peerInfo != null) {
+            Log.debug(() -> "Found own entry in PeerInfo.cfg: " + peerInfo.peerID);
+            hostName = peerInfo.hostName;
+            listeningPort = peerInfo.listeningPort;
+            hasFile = peerInfo.hasFile;
+        } else {
+            throw new IllegalArgumentException("Peer " + currentPeerID + " is not in the peer list");
         }
     }
 
@@ -233,114 +598,229 @@ public class peerProcess {
             boolean created = dir.mkdirs();
 
             if (created) {
-                System.out.println("Directory created: " + dirName);
+                Log.info("Directory created: " + dirName);
             } else {
-                System.out.println("Failed to create directory: " + dirName);
+                Log.warn("Failed to create directory: " + dirName);
             }
         }
     }
 
-    private static void setUpLogFile(int peerID) {
-        try {
-            File logFile = new File("log_peer_" + peerID + ".log");
+    // Starts the log writer thread, the logging settings are read here because they are needed before the constructor runs
+    private static void startLogging() {
+        Map<String, String> commonConfig = loadConfiguration("Common.cfg");
+        Log.start(Log.Level.fromConfig(commonConfig.getOrDefault("LogLevel", "info")),
+                Log.Overflow.fromConfig(commonConfig.getOrDefault("LogOverflow", "block")),
+                Integer.parseInt(commonConfig.getOrDefault("LogBufferSize", "8192")),
+                Integer.parseInt(commonConfig.getOrDefault("LogFlushLines", "256")),
+                Long.parseLong(commonConfig.getOrDefault("LogFlushMillis", "100")));
+    }
+
+    private void connectToPreviousPeers() {
+        List<PeerInfo> previousPeers = previousPeers();
+        beginOutboundConnects(previousPeers.size());
+        for (PeerInfo peer : previousPeers) {
+            // Each connect blocks on its own (possibly virtual) thread, so they all run at the same time
+            connectionExecutor.execute(() -> connectWithRetry(peer));
+        }
+    }
 
-            if (!logFile.exists()) {
-                logFile.createNewFile();
+    // The peers listed before us in PeerInfo.cfg, we connect to them. The ones after us connect to us.
+    private List<PeerInfo> previousPeers() {
+        List<PeerInfo> previousPeers = new ArrayList<>();
+        for (PeerInfo peer : allPeers) {
+            if (peer.peerID == peerID) {
+                break; // Once we find our own peerInfo, this means we haven't seen the ones ahead
             }
+            previousPeers.add(peer);
+        }
+        return previousPeers;
+    }
 
-            logWriter = new FileWriter(logFile, true); // Append mode
-        } catch (IOException e) {
-            System.out.println("Failed to create log file for peer " + peerID);
-            e.printStackTrace();
+    // Called by both engines once a peer that connected to us got through the handshake
+    void onInboundConnection(int remotePeerID) {
+        logEvent("Peer " + peerID + " is connected from Peer " + remotePeerID + ".");
+    }
+
+    private void beginOutboundConnects(int count) {
+        connectSetupStart = System.nanoTime();
+        pendingConnects.set(count);
+    }
+
+    // Called by both engines once an outbound connect either got through the handshake or ran out of attempts
+    void onOutboundConnectDone(int remotePeerID, boolean established, int attempts, long startNanos) {
+        long now = System.nanoTime();
+        if (established) {
+            establishedConnects.incrementAndGet();
+            logEvent("Peer " + peerID + " makes a connection to Peer " + remotePeerID + ".");
+            Log.info("Connected to peer " + remotePeerID + " in " + (now - startNanos) / 1_000_000 + " ms (" + attempts + (attempts == 1 ? " attempt)" : " attempts)"));
+        }
+        if (pendingConnects.decrementAndGet() == 0) {
+            Log.info("Connection setup done: " + establishedConnects.get() + " of " + previousPeers().size()
+                    + " earlier peers connected in " + (now - connectSetupStart) / 1_000_000 + " ms");
         }
     }
 
-    public static void log(String message) {
-        try {
-            logWriter.write(message + "\n");
-            logWriter.flush();
-        } catch (IOException e) {
-            System.out.println("Failed to write to log file.");
-            e.printStackTrace();
+    // Connects to one earlier peer, retrying with backoff while it isn't reachable (it may not be listening yet)
+    private void connectWithRetry(PeerInfo peer) {
+        long start = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                connectToPeer(peer);
+                onOutboundConnectDone(peer.peerID, true, attempt, start);
+                return;
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                if (!connectPolicy.canRetry(attempt)) {
+                    Log.warn("Could not connect to peer " + peer.peerID + ":" + peer.listeningPort + " after " + attempt + " attempts", e);
+                    onOutboundConnectDone(peer.peerID, false, attempt, start);
+                    return;
+                }
+                long delay = connectPolicy.backoffBefore(attempt + 1);
+                Log.info("Could not connect to peer " + peer.peerID + " (attempt " + attempt + "): " + e.getMessage() + ", retrying in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
         }
     }
 
-    private void connectToPreviousPeers() {
+    private void connectToPeer(PeerInfo peer) throws IOException {
+        Log.info("Attempting to connect to peer " + peer.peerID + " at " + peer.hostName + ":" + peer.listeningPort);
+        // Sockets are opened through a channel so PIECE uploads can use FileChannel.transferTo
+        SocketChannel channel = SocketChannel.open();
         try {
-            latch.await();
-            for (PeerInfo peer : allPeers) {
-                // This ensures that all previous will be connected to
-                if (peer.peerID != peerID) {
-                    try {
-                        System.out.println("Attempting to connect to peer " + peer.peerID + " at " + peer.hostName + ":" + peer.listeningPort);
-                        Socket socket = new Socket(peer.hostName, peer.listeningPort);
-                        System.out.println("Connected to peer " + peer.peerID);
-
-                        addNeighbor(peer.peerID, socket);
-
-                        // Send handshake and wait for response
-                        boolean handshakeAcknowledged = HandshakeMessage.exchangeHandshake(socket, peerID, allPeers);
-
-                        if (handshakeAcknowledged) {
-                            // Proceed with sending bitfield and other messages
-                            handlePeerCommunication(socket, peer.peerID);
-                        } else {
-                            System.out.println("Handshake failed with peer " + peer.peerID);
-                            socket.close();
-                        }
-                    } catch (IOException e) {
-                        System.out.println("Could not connect to peer " + peer.peerID + ":" + peer.listeningPort);
-                        e.printStackTrace();
-                    }
-                } else {
-                    // Once we find our own peerInfo, this means we haven't seen the ones ahead, so break.
-                    break;
-                }
+            Socket socket = channel.socket();
+            socket.connect(new InetSocketAddress(peer.hostName, peer.listeningPort), connectPolicy.getConnectTimeout());
+            long openedAt = System.nanoTime();
+
+            // Send handshake and wait for response. The timeout only covers the handshake, the read loop reads the channel directly.
+            // With CombinedHandshake our BITFIELD goes along with it instead of waiting for the reply.
+            socket.setSoTimeout(connectPolicy.getHandshakeTimeout());
+            BitSet advertised = combinedHandshake ? copyBitfield() : null;
+            byte[] handshake = HandshakeMessage.exchangeHandshake(socket, peerID, peersByID, initialBitfieldMessage(advertised));
+            if (handshake == null) {
+                throw new IOException("Handshake failed with peer " + peer.peerID);
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            socket.setSoTimeout(0);
+
+            addNeighbor(peer.peerID, socket);
+            neighbors.get(peer.peerID).setFeatures(HandshakeMessage.featuresOf(handshake));
+            neighbors.get(peer.peerID).setOpenedAt(openedAt);
+            // Proceed with sending bitfield and other messages
+            handlePeerCommunication(socket, peer.peerID, advertised);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
     }
 
-    public void sendBitfieldMessage(Socket peerSocket, BitSet bitfield, int numPieces) throws IOException {
-        // Debug: Print the actual BitSet size and the expected numPieces
-        // System.out.println("Sending Bitfield: Actual BitSet size = " + bitfield.length() + ", Expected numPieces = " + numPieces);
+    private void startNioEngine() throws IOException {
+        nioEngine = new NioEngine(this, peerID, peersByID, nioThreads, bufferPool, connectPolicy, scheduledExecutorService);
+        nioEngine.start(listeningPort);
 
-        byte[] bitfieldBytes = bitfield.toByteArray();
+        // Same as connectToPreviousPeers, only connect to the peers listed before us
+        List<PeerInfo> previousPeers = previousPeers();
+        beginOutboundConnects(previousPeers.size());
+        for (PeerInfo peer : previousPeers) {
+            nioEngine.connect(peer);
+        }
+    }
 
-        // Create and send the bitfield message
-        Message bitfieldMessage = Message.createBitfieldMessage(bitfield, numPieces);
-        sendMessage(peerSocket, bitfieldMessage);
+    // Called by the NIO engine once the handshake with a neighbor is done. advertised is what the BITFIELD sent
+    // along with our handshake announced, null if there was none.
+    void onConnectionEstablished(Neighbor neighbor, BitSet advertised) throws IOException {
+        neighbor.setRequestWindow(new RequestWindow(minRequestWindow, maxRequestWindow, blockLength));
+        neighbor.setBandwidthBuckets(uploadLimiter.newNeighborBucket(), downloadLimiter.newNeighborBucket());
+        if (neighbors.putIfAbsent(neighbor.getPeerID(), neighbor) == null) {
+            peerMetrics.onNeighborAdded(neighbor);
+        }
+        Log.info("Neighbor added: " + neighbor.getPeerID());
+        sendInitialPieces(neighbor, advertised);
+        sendManifest(neighbor);
     }
 
+    // Called by the NIO engine right after it queued our handshake, the two control frames are written together.
+    // Returns the pieces the BITFIELD announced, null without CombinedHandshake.
+    BitSet queueInitialBitfield(OutboundQueue queue) {
+        if (!combinedHandshake) {
+            return null;
+        }
+        BitSet advertised = copyBitfield();
+        ByteBuffer frame = initialBitfieldMessage(advertised).encode(bufferPool);
+        if (!queue.addControl(frame)) {
+            bufferPool.release(frame);
+            return null;
+        }
+        return advertised;
+    }
 
-    public void sendMessage(Socket socket, Message message) throws IOException {
-        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-        byte[] messageBytes = message.getBytes();
-        dos.write(messageBytes);
-        dos.flush(); // Ensure the message is sent immediately
+    private Message initialBitfieldMessage(BitSet advertised) {
+        return advertised == null ? null : Message.createBitfieldMessage(advertised, numPieces);
     }
 
-    // Function for receiving and parsing message
-    public static Message receiveMessage(Socket socket) throws IOException {
-        DataInputStream dis = new DataInputStream(socket.getInputStream());
+    // The BITFIELD follows the handshake, unless it went out in the same write. Then only the pieces completed
+    // since are missing: the neighbor wasn't registered yet, so their HAVEs weren't sent to it.
+    private void sendInitialPieces(Neighbor neighbor, BitSet advertised) throws IOException {
+        if (advertised == null) {
+            Log.debug(() -> "Sending bitfield, we have " + pieceStates.getHaveCount() + " pieces");
+            sendBitfieldMessage(neighbor, copyBitfield(), this.numPieces);
+            return;
+        }
+        BitSet missed = copyBitfield();
+        missed.andNot(advertised);
+        if (!missed.isEmpty()) {
+            Log.debug(() -> "Announcing " + missed.cardinality() + " pieces completed during the handshake to peer " + neighbor.getPeerID());
+            announcePieces(neighbor, missed);
+        }
+    }
 
-        int messageLength = dis.readInt(); // Read message length 4 bytes
-        byte messageType = dis.readByte(); // Read message type 1 byte
+    void onConnectionLost(int peerID) {
+        Log.info("Lost connection with peer " + peerID);
+        Neighbor neighbor = neighbors.remove(peerID);
+        if (neighbor != null) {
+            neighbor.getOutboundQueue().close(); // Stops the writer
+            releaseRequestedBlocks(neighbor); // Those requests will never be answered
+            releaseClaims(neighbor);
+            piecePicker.removePeer(neighbor.getPeerID());
+            chokeScheduler.removeNeighbor(neighbor);
+            peerMetrics.onNeighborRemoved(neighbor);
+        }
+    }
 
-        byte[] payload = null;
+    public void sendBitfieldMessage(Neighbor neighbor, BitSet bitfield, int numPieces) throws IOException {
+        // Create and send the bitfield message
+        Message bitfieldMessage = Message.createBitfieldMessage(bitfield, numPieces);
+        sendMessage(neighbor, bitfieldMessage);
+    }
 
-        if (messageLength > 1) {
-            payload = new byte[messageLength - 1]; // minus 1 for the messageType byte
-            dis.readFully(payload); // Read the payload
-        }
 
-        if (messageType == MessageType.BITFIELD) {
-            // Debug: Since payload length = messageLength - 1 (due to messageType byte), it represents the bitfield length in bytes
-            // System.out.println("Received bitfield message with payload length (bitfield length in bytes): " + payload.length);
+    public void sendMessage(Neighbor neighbor, Message message) throws IOException {
+        // Queued as a control frame, the neighbor's writer (NeighborWriter or the NIO event loop) batches it
+        // with the other waiting control frames and sends it ahead of queued uploads
+        ByteBuffer frame = message.encode(bufferPool);
+        if (!neighbor.getOutboundQueue().addControl(frame)) {
+            bufferPool.release(frame);
+            throw new IOException("Connection to peer " + neighbor.getPeerID() + " is closed");
         }
+    }
 
-        return new Message(messageType, payload);
+    // Every neighbor gets the manifest once, unless it sent us one already
+    private void sendManifest(Neighbor neighbor) {
+        PieceManifest manifest = pieceManifest;
+        if (manifest == null || !neighbor.markManifestExchanged()) {
+            return;
+        }
+        try {
+            sendMessage(neighbor, Message.createManifestMessage(manifest));
+            Log.debug(() -> "Sent MANIFEST to peer " + neighbor.getPeerID());
+        } catch (IOException e) {
+            Log.warn("Error sending MANIFEST to peer " + neighbor.getPeerID(), e);
+        }
     }
 
     // HANDLE FUNCTIONS FOR RECEIVING MESSAGES
@@ -349,54 +829,37 @@ public class peerProcess {
         Neighbor neighbor = neighbors.get(peerID);
 
         if (neighbor != null) {
-            neighbor.setChoked(true);
-            System.out.println("Peer " + peerID + " is choking us.");
+            neighbor.setChokingUs(true);
+            peerMetrics.recordChokeReceived();
+            logEvent("Peer " + this.peerID + " is choked by " + peerID + ".");
+            Log.debug(() -> "Peer " + peerID + " is choking us.");
+
+            // A choking peer doesn't answer requests, give them back so other neighbors can be asked
+            releaseRequestedBlocks(neighbor);
         }
     }
 
     private void handleUnchoke(int peerID) {
         Neighbor unchokingNeighbor = neighbors.get(peerID);
-        Random random = new Random();
 
         if (unchokingNeighbor != null) {
-            System.out.println("Peer " + peerID + " is unchoking us.");
-
-            BitSet neededPieces = (BitSet) bitfield.clone();
-            neededPieces.flip(0, numPieces); // Ensure only within range
-            neededPieces.and(unchokingNeighbor.getPieces());
-
-            // Remove pieces that have already been requested from any neighbor
-            neighbors.values().forEach(n -> n.getRequestedPieces().forEach(neededPieces::clear));
-
-            if (!neededPieces.isEmpty()) {
-                // Convert BitSet to a list of valid piece indices
-                List<Integer> validPieceIndices = neededPieces.stream().boxed().collect(Collectors.toList());
-                if (!validPieceIndices.isEmpty()) {
-                    int randomIndex = random.nextInt(validPieceIndices.size());
-                    int randomPieceIndex = validPieceIndices.get(randomIndex);
-
-                    try {
-                        sendRequestMessage(unchokingNeighbor, randomPieceIndex);
-                        unchokingNeighbor.addRequestedPiece(randomPieceIndex); // Track this request
-                    } catch (IOException e) {
-                        System.out.println("Failed to send request message to " + peerID);
-                        e.printStackTrace();
-                    }
-                }
-            }
+            Log.debug(() -> "Peer " + peerID + " is unchoking us.");
+            logEvent("Peer " + this.peerID + " is unchoked by " + peerID + ".");
+            unchokingNeighbor.setChokingUs(false);
+            peerMetrics.recordUnchokeReceived();
+            fillRequestWindow(unchokingNeighbor);
         } else {
-            System.out.println("Received unchoke from unknown peer: " + peerID);
+            Log.warn("Received unchoke from unknown peer: " + peerID);
         }
     }
 
     private void handleBitfieldMessage(int peerID, BitSet senderBitfield) {
-        // System.out.println("Received bitfield message from " + peerID);
         Neighbor senderNeighbor = neighbors.get(peerID);
         if (senderNeighbor != null) {
-            senderNeighbor.updatePieces(senderBitfield);
+            piecePicker.addPeerPieces(peerID, senderNeighbor.updatePieces(senderBitfield));
 
             BitSet neededPieces = (BitSet)senderBitfield.clone();
-            neededPieces.andNot(bitfield);
+            neededPieces.andNot(copyBitfield());
 
             if (!neededPieces.isEmpty()) {
                 sendInterestedMessage(senderNeighbor);
@@ -405,17 +868,62 @@ public class peerProcess {
             }
         }
         else {
-            System.out.println("There is an error, neighbor should be in the list by now.");
+            Log.warn("There is an error, neighbor should be in the list by now.");
+        }
+    }
+
+    private void handleManifest(int peerID, ByteBuffer payload) throws IOException {
+        Neighbor neighbor = neighbors.get(peerID);
+        if (neighbor != null) {
+            neighbor.markManifestExchanged(); // They have one, no need to send ours
+        }
+        if (pieceHash == null || pieceManifest != null) {
+            return;
+        }
+
+        PieceManifest manifest = PieceManifest.decode(payload);
+        if (!manifest.matches(numPieces, pieceSize, fileSize)) {
+            Log.warn("Ignoring MANIFEST from peer " + peerID + ", it was made for a different file layout");
+            return;
+        }
+        if (!adoptManifest(manifest)) {
+            return; // Another neighbor's copy got here first
+        }
+        Log.info("Received " + manifest.getAlgorithm() + " piece manifest from peer " + peerID);
+
+        if (checkpoint != null) {
+            try {
+                manifest.save(manifestPath());
+            } catch (IOException e) {
+                Log.warn("Failed to save the manifest, recovered pieces can't be verified after a restart", e);
+            }
+        }
+
+        // Pass it on, then start requesting now that pieces can be checked
+        for (Neighbor other : neighbors.values()) {
+            sendManifest(other);
+        }
+        for (Neighbor other : neighbors.values()) {
+            fillRequestWindow(other);
         }
     }
 
+    private synchronized boolean adoptManifest(PieceManifest manifest) {
+        if (pieceManifest != null) {
+            return false;
+        }
+        pieceManifest = manifest;
+        return true;
+    }
+
     private void handleInterested(int peerID) {
         // Mark the peer as interested
         Neighbor neighbor = neighbors.get(peerID);
 
         if (neighbor != null) {
             neighbor.setInterested(true);
-            System.out.println("Peer " + peerID + " is interested in us.");
+            Log.debug(() -> "Peer " + peerID + " is interested in us.");
+            logEvent("Peer " + this.peerID + " received the 'interested' message from " + peerID + ".");
         }
     }
 
@@ -425,7 +933,8 @@ public class peerProcess {
 
         if (neighbor != null) {
             neighbor.setInterested(false);
-            System.out.println("Peer " + peerID + " is not interested in us anymore.");
+            Log.debug(() -> "Peer " + peerID + " is not interested in us anymore.");
+            logEvent("Peer " + this.peerID + " received the 'not interested' message from " + peerID + ".");
         }
     }
 
@@ -433,127 +942,437 @@ public class peerProcess {
         Neighbor neighbor = neighbors.get(peerID);
 
         if (neighbor != null) {
-            BitSet newPieces = neighbor.getPieces();
-            newPieces.set(pieceIndex);
-            neighbor.updatePieces(newPieces);
+            if (neighbor.addPiece(pieceIndex)) {
+                piecePicker.addPeerPiece(peerID, pieceIndex);
+            }
+            logEvent("Peer " + this.peerID + " received the 'have' message from " + peerID + " for the piece " + pieceIndex + ".");
 
-            System.out.println("Peer " + peerID + " has piece " + pieceIndex);
+            Log.trace(() -> "Peer " + peerID + " has piece " + pieceIndex);
 
-            if (!this.bitfield.get(pieceIndex)) {
+            if (!hasPiece(pieceIndex)) {
                 // We do not have this piece, so send an interested message.
                 sendInterestedMessage(neighbor);
+                fillRequestWindow(neighbor);
             }
         }
     }
 
-    private void handleRequest(int peerID, int pieceIndex) throws IOException {
+    // Same as a HAVE for every index, but interest and the request window are only updated once
+    private void handleHaveMulti(int peerID, ByteBuffer payload) throws IOException {
         Neighbor neighbor = neighbors.get(peerID);
-        if (neighbor != null && !neighbor.isChoked() && filePieces.containsKey(pieceIndex)) {
-            Socket peerSocket = neighbor.getSocket();
-            byte[] pieceContent = filePieces.get(pieceIndex);
+        if (neighbor == null) {
+            return;
+        }
 
+        boolean wanted = false;
+        int addressLength = files.getPieceAddressLength();
+        int count = payload.remaining() / addressLength;
+        while (payload.remaining() >= addressLength) {
+            int pieceIndex = files.getPiece(payload);
+            if (neighbor.addPiece(pieceIndex)) {
+                piecePicker.addPeerPiece(peerID, pieceIndex);
+            }
+            logEvent("Peer " + this.peerID + " received the 'have' message from " + peerID + " for the piece " + pieceIndex + ".");
+            wanted |= !hasPiece(pieceIndex);
+        }
+        Log.trace(() -> "Peer " + peerID + " has " + count + " more pieces");
+
+        if (wanted) {
+            sendInterestedMessage(neighbor);
+            fillRequestWindow(neighbor);
+        }
+    }
+
+    private void handleRequest(int peerID, int pieceIndex) throws IOException {
+        Neighbor neighbor = neighbors.get(peerID);
+        if (neighbor != null && !neighbor.isChoked() && hasPiece(pieceIndex)) {
             // Construct and send the piece message
-            sendPieceMessage(neighbor, pieceIndex, pieceContent);
+            sendPieceMessage(neighbor, pieceIndex, 0, pieceStore.getPieceLength(pieceIndex), false);
         } else {
-            System.out.println("Request for piece " + pieceIndex + " by peer " + peerID + " cannot be fulfilled.");
+            Log.debug(() -> "Request for piece " + pieceIndex + " by peer " + peerID + " cannot be fulfilled.");
         }
     }
 
-    private void handlePiece(int pieceIndex, byte[] pieceContent, int senderPeerID) throws IOException {
-        filePieces.put(pieceIndex, pieceContent);
-        bitfield.set(pieceIndex);
-        System.out.println("Received piece " + pieceIndex + " from peer " + senderPeerID);
+    private void handleBlockRequest(int peerID, int pieceIndex, int offset, int length) throws IOException {
+        Neighbor neighbor = neighbors.get(peerID);
+        boolean validRange = pieceIndex >= 0 && pieceIndex < numPieces && offset >= 0 && length > 0
+                && (long) offset + length <= pieceStore.getPieceLength(pieceIndex);
 
-        sendHaveMessage(pieceIndex);
+        if (neighbor != null && !neighbor.isChoked() && validRange && hasPiece(pieceIndex)) {
+            sendPieceMessage(neighbor, pieceIndex, offset, length, true);
+        } else {
+            Log.debug(() -> "Request for piece " + pieceIndex + " offset " + offset + " by peer " + peerID + " cannot be fulfilled.");
+        }
+    }
+
+    private void handlePiece(int pieceIndex, ByteBuffer pieceContent, int senderPeerID) throws IOException {
+        handleBlock(pieceIndex, 0, pieceContent, senderPeerID);
+    }
+
+    // A PIECE is handled as a block that covers the whole piece
+    private void handleBlock(int pieceIndex, int offset, ByteBuffer blockContent, int senderPeerID) throws IOException {
+        int blockLength = blockContent.remaining();
+        long blockKey = PartialPiece.blockKey(pieceIndex, offset);
 
         Neighbor senderNeighbor = neighbors.get(senderPeerID);
         if (senderNeighbor != null) {
-            senderNeighbor.removeRequestedPiece(pieceIndex); // Update requested pieces
+            // Every payload byte counts for tit-for-tat, also duplicates and blocks we didn't ask for anymore
+            senderNeighbor.recordDownloaded(blockLength);
+        }
+        if (senderNeighbor != null && senderNeighbor.removeRequestedBlock(blockKey)) {
+            // Cancel the timeout for the received block
+            senderNeighbor.cancelRequestTimeout(blockKey);
+            long latency = senderNeighbor.getRequestWindow().onBlockReceived(blockKey, blockLength);
+            if (latency >= 0) {
+                senderNeighbor.getRequestLatency().record(latency);
+                peerMetrics.recordRequestLatency(latency);
+            }
+        }
 
-            // Cancel the timeout for the received piece
-            senderNeighbor.cancelRequestTimeout(pieceIndex);
+        PartialPiece partial = partialPieces.get(pieceIndex);
+        int blockIndex = partial != null ? partial.blockIndexOf(offset, blockLength) : -1;
 
+        // Endgame may have asked other neighbors for the same block, withdraw those requests.
+        // Outside endgame a block is only ever requested once, so the neighbors aren't searched for it.
+        if (blockIndex != -1 && partial.takeDuplicated(blockIndex)) {
+            cancelDuplicateRequests(blockKey, blockLength, senderPeerID);
+        }
+
+        // Claim the block before writing it, so a second copy from another neighbor never overwrites a piece
+        // that is complete or being verified
+        if (blockIndex == -1 || hasPiece(pieceIndex) || !partial.tryReceive(blockIndex)) {
+            Log.trace(() -> "Ignoring unexpected piece " + pieceIndex + " offset " + offset + " from peer " + senderPeerID);
+        } else {
+            try {
+                pieceStore.writeBlock(pieceIndex, offset, blockContent);
+            } catch (IOException | RuntimeException e) {
+                partial.abandonReceive(blockIndex);
+                throw e;
+            }
+            if (partial.markWritten(blockIndex)) {
+                // That was the last missing block
+                onPieceDownloaded(partial, senderPeerID);
+            }
+        }
+
+        if (senderNeighbor != null) {
             if (!isInterestedIn(senderNeighbor)) {
                 sendNotInterestedMessage(senderNeighbor);
-                System.out.println("Not interested in peer " + senderPeerID + " anymore.");
+                Log.debug(() -> "Not interested in peer " + senderPeerID + " anymore.");
             } else {
-                // Continue requesting next needed piece if still interested
-                requestNextNeededPiece(senderNeighbor);
+                // Top the request window back up if still interested
+                fillRequestWindow(senderNeighbor);
             }
         }
+    }
+
+    // Checks the piece against the manifest on the verifier pool, so the reader thread goes straight back to its socket.
+    // The piece stays in partialPieces until it is verified, every block is received so nobody requests it meanwhile.
+    private void onPieceDownloaded(PartialPiece partial, int senderPeerID) throws IOException {
+        int pieceIndex = partial.getPieceIndex();
+        if (pieceManifest == null) {
+            // PieceHash none, the piece is taken as it is
+            partialPieces.remove(pieceIndex);
+            onPieceCompleted(pieceIndex, senderPeerID);
+            return;
+        }
+        verifierPool.execute(() -> verifyPiece(partial, senderPeerID));
+    }
+
+    private void verifyPiece(PartialPiece partial, int senderPeerID) {
+        int pieceIndex = partial.getPieceIndex();
+        boolean valid;
+        try {
+            valid = pieceManifest.verify(pieceStore, pieceIndex);
+        } catch (IOException e) {
+            Log.warn("Failed to read piece " + pieceIndex + " for verification", e);
+            valid = false;
+        }
+
+        if (valid) {
+            try {
+                onPieceCompleted(pieceIndex, senderPeerID);
+            } catch (IOException e) {
+                Log.warn("Failed to complete piece " + pieceIndex, e);
+            } finally {
+                partialPieces.remove(pieceIndex); // Only now, hasPiece is already true
+            }
+            return;
+        }
+
+        // Throw the content away and fetch every block again, possibly from other neighbors
+        Log.warn("Piece " + pieceIndex + " completed by peer " + senderPeerID + " doesn't match the manifest, requesting it again");
+        partialPieces.replace(pieceIndex, partial, newPartialPiece(pieceIndex)); // Stays claimed
+        redispatchPiece(pieceIndex);
+    }
+
+    private void onPieceCompleted(int pieceIndex, int senderPeerID) throws IOException {
+        if (!markPieceReceived(pieceIndex)) {
+            return; // Another reader thread completed the same piece at the same time
+        }
+        piecePicker.markHave(pieceIndex);
+        pieceStore.commitPiece(pieceIndex);
+        if (checkpoint != null) {
+            checkpoint.recordPiece(pieceIndex);
+        }
+        Log.trace(() -> "Received piece " + pieceIndex + " from peer " + senderPeerID);
+        logEvent("Peer " + peerID + " has downloaded the piece " + pieceIndex + " from " + senderPeerID
+                + ". Now the number of pieces it has is " + pieceStates.getHaveCount() + ".");
+        peerMetrics.recordPieceCompleted();
+        Neighbor sender = neighbors.get(senderPeerID);
+        if (sender != null) {
+            sender.recordPieceCompleted();
+        }
+
+        sendHaveMessage(pieceIndex);
 
         if (isDownloadComplete()) {
-            System.out.println("DOWNLOAD COMPLETE");
+            peerMetrics.recordDownloadComplete();
+            Log.info("DOWNLOAD COMPLETE");
+            logEvent("Peer " + peerID + " has downloaded the complete file.");
+            Log.info("First piece after " + peerMetrics.getTimeToFirstPieceMillis() + " ms, complete after " + peerMetrics.getTimeToCompletionMillis() + " ms");
             assembleFile();
+            downloadComplete.countDown();
         }
     }
 
-    private void requestNextNeededPiece(Neighbor neighbor) {
-        BitSet availableAndNeededPieces = (BitSet) neighbor.getPieces().clone();
-        availableAndNeededPieces.andNot(bitfield); // Find pieces the neighbor has that we need
+    private void cancelDuplicateRequests(long blockKey, int length, int senderPeerID) {
+        for (Neighbor neighbor : neighbors.values()) {
+            if (neighbor.getPeerID() != senderPeerID && neighbor.removeRequestedBlock(blockKey)) {
+                neighbor.cancelRequestTimeout(blockKey);
+                neighbor.getRequestWindow().onRequestDropped(blockKey);
+                sendCancelMessage(neighbor, PartialPiece.pieceOf(blockKey), PartialPiece.offsetOf(blockKey), length);
+                fillRequestWindow(neighbor); // The slot is free again
+            }
+        }
+    }
 
-        // Convert BitSet to an ArrayList for easy random access
-        ArrayList<Integer> neededPieceList = new ArrayList<>();
-        availableAndNeededPieces.stream().forEach(neededPieceList::add);
+    private void handleCancel(int peerID, int pieceIndex, int offset, int length) {
+        Neighbor neighbor = neighbors.get(peerID);
+        // Only an upload that is still queued can be dropped, one that is already being written goes out anyway
+        if (neighbor != null && neighbor.getOutboundQueue().cancelUpload(pieceIndex, offset)) {
+            Log.trace(() -> "Peer " + peerID + " cancelled its request for piece " + pieceIndex + " offset " + offset + ", dropped the queued upload");
+        } else {
+            Log.trace(() -> "Peer " + peerID + " cancelled its request for piece " + pieceIndex + " offset " + offset + ", already sent");
+        }
+    }
+
+    private boolean isEndgame() {
+        int missing = pieceStates.getMissingCount();
+        return missing > 0 && missing <= endgameThreshold;
+    }
+
+    // Asks any unchoked neighbor that has the piece for it, after the request to the original neighbor was given up
+    private void redispatchPiece(int pieceIndex) {
+        for (Neighbor neighbor : neighbors.values()) {
+            if (!neighbor.isChokingUs() && neighbor.getPieces().get(pieceIndex)) {
+                fillRequestWindow(neighbor);
+            }
+        }
+    }
 
-        // Filter out pieces that have already been requested
-        neededPieceList.removeIf(neighbor::hasRequestedPiece);
+    // Hands a block that won't arrive from its neighbor back to its piece, so the next window fill can request it again
+    private void releaseBlock(long blockKey) {
+        PartialPiece partial = partialPieces.get(PartialPiece.pieceOf(blockKey));
+        if (partial != null) {
+            int offset = PartialPiece.offsetOf(blockKey);
+            partial.releaseBlock(offset / blockLength);
+        }
+    }
 
-        if (!neededPieceList.isEmpty()) {
-            // Select a random piece from the list
-            int randomIndex = new Random().nextInt(neededPieceList.size());
-            int nextNeededPiece = neededPieceList.get(randomIndex);
-            // System.out.println("RANDEX: " + nextNeededPiece);
+    // Pieces the neighbor started are handed back, the next neighbor that picks one takes over its claim and blocks
+    private void releaseClaims(Neighbor neighbor) {
+        for (int pieceIndex : partialPieces.keySet()) {
+            pieceStates.release(pieceIndex, neighbor.getPeerID());
+        }
+    }
+
+    private void releaseRequestedBlocks(Neighbor neighbor) {
+        for (long blockKey : neighbor.clearRequestedBlocks()) {
+            releaseBlock(blockKey);
+        }
+    }
+
+    // Keeps up to window size requests in flight to the neighbor, so the link doesn't sit idle for a round trip per block
+    private void fillRequestWindow(Neighbor neighbor) {
+        if (neighbor.isChokingUs()) {
+            return;
+        }
+        if (pieceHash != null && pieceManifest == null) {
+            return; // Nothing could be verified yet, handleManifest fills the windows once a neighbor sends it (see warnIfNoManifest)
+        }
+        int freeSlots = neighbor.getFreeRequestSlots();
+        if (freeSlots <= 0) {
+            return;
+        }
+
+        BitSet neighborPieces = neighbor.getPieces();
+
+        if (isEndgame()) {
+            fillRequestWindowEndgame(neighbor, neighborPieces, freeSlots);
+            return;
+        }
+
+        // First finish the pieces already in progress, their remaining blocks can come from this neighbor in parallel
+        for (PartialPiece partial : partialPieces.values()) {
+            if (freeSlots <= 0) {
+                return;
+            }
+            if (neighborPieces.get(partial.getPieceIndex())) {
+                freeSlots -= requestBlocks(neighbor, partial, freeSlots);
+            }
+        }
 
+        // Then start new pieces
+        while (freeSlots > 0) {
+            int nextNeededPiece = piecePicker.pickPiece(neighbor.getPeerID(), pieceStates::isNeeded);
+            if (nextNeededPiece == -1) {
+                return; // Neighbor has nothing left that we need
+            }
+            // Only the claim that wins the CAS starts the piece, everybody else picks again
+            if (pieceStates.claim(nextNeededPiece, neighbor.getPeerID())) {
+                PartialPiece partial = partialPieces.computeIfAbsent(nextNeededPiece, this::newPartialPiece);
+                freeSlots -= requestBlocks(neighbor, partial, freeSlots);
+            }
+        }
+    }
+
+    // Endgame: every missing block the neighbor can give us is requested, even if another neighbor is already fetching it.
+    // The first copy to arrive wins and the others are withdrawn with a CANCEL.
+    private void fillRequestWindowEndgame(Neighbor neighbor, BitSet neighborPieces, int freeSlots) {
+        BitSet neededPieces = copyBitfield();
+        neededPieces.flip(0, numPieces);
+        neededPieces.and(neighborPieces);
+
+        for (int pieceIndex = neededPieces.nextSetBit(0); pieceIndex >= 0 && freeSlots > 0; pieceIndex = neededPieces.nextSetBit(pieceIndex + 1)) {
+            pieceStates.claim(pieceIndex, neighbor.getPeerID()); // Usually claimed already, endgame requests it anyway
+            PartialPiece partial = partialPieces.computeIfAbsent(pieceIndex, this::newPartialPiece);
+
+            for (int blockIndex = 0; blockIndex < partial.getNumBlocks() && freeSlots > 0; blockIndex++) {
+                long blockKey = PartialPiece.blockKey(pieceIndex, partial.blockOffset(blockIndex));
+                if (neighbor.hasRequestedBlock(blockKey)) {
+                    continue;
+                }
+                if (!admitRequest(neighbor)) {
+                    return;
+                }
+                if (!partial.claimDuplicate(blockIndex)) {
+                    refundRequest(neighbor);
+                    continue;
+                }
+                try {
+                    sendRequestMessage(neighbor, partial, blockIndex);
+                    freeSlots--;
+                } catch (IOException e) {
+                    Log.warn("Failed to send request message for piece " + pieceIndex, e);
+                    return;
+                }
+            }
+        }
+    }
+
+    private PartialPiece newPartialPiece(int pieceIndex) {
+        return new PartialPiece(pieceIndex, pieceStore.getPieceLength(pieceIndex), blockLength);
+    }
+
+    // Requests up to maxBlocks unclaimed blocks of the piece, returns how many slots were used
+    private int requestBlocks(Neighbor neighbor, PartialPiece partial, int maxBlocks) {
+        int requested = 0;
+        while (requested < maxBlocks) {
+            if (!admitRequest(neighbor)) {
+                return maxBlocks; // Over the download limit, the window is filled again once the buckets have refilled
+            }
+            int blockIndex = partial.claimNextBlock();
+            if (blockIndex == -1) {
+                refundRequest(neighbor);
+                break;
+            }
             try {
-                sendRequestMessage(neighbor, nextNeededPiece);
+                sendRequestMessage(neighbor, partial, blockIndex);
+                requested++;
             } catch (IOException e) {
-                System.err.println("Failed to send request message for piece " + nextNeededPiece + ": " + e.getMessage());
-                e.printStackTrace();
+                Log.warn("Failed to send request message for piece " + partial.getPieceIndex(), e);
+                partial.releaseBlock(blockIndex);
+                return maxBlocks; // Connection is broken, stop filling
             }
         }
+        return requested;
     }
 
+    // Download limit: a REQUEST is only sent if the buckets have the bytes for its answer (charged as a full block).
+    // Otherwise one fill of the window is scheduled for when they should have them.
+    private boolean admitRequest(Neighbor neighbor) {
+        if (!downloadLimiter.isLimited()) {
+            return true;
+        }
+        long wait = downloadLimiter.tryAcquire(neighbor.getDownloadBucket(), blockLength);
+        if (wait == 0) {
+            return true;
+        }
+        if (neighbor.markRefillScheduled()) {
+            scheduledExecutorService.schedule(() -> {
+                neighbor.clearRefillScheduled();
+                if (neighbors.get(neighbor.getPeerID()) == neighbor) {
+                    fillRequestWindow(neighbor);
+                }
+            }, wait, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
 
+    // The admitted request wasn't sent after all
+    private void refundRequest(Neighbor neighbor) {
+        if (downloadLimiter.isLimited()) {
+            downloadLimiter.refund(neighbor.getDownloadBucket(), blockLength);
+        }
+    }
 
+    public boolean isDownloadComplete() {
+        return pieceStates.isComplete(); // Check if all pieces are received
+    }
 
+    // The piece states are shared by every reader thread, the verifier pool and the schedulers, see PieceStateTable
+    private boolean hasPiece(int pieceIndex) {
+        return pieceStates.has(pieceIndex);
+    }
 
-    private boolean isDownloadComplete() {
-        // System.out.println("BITFIELD CARDINALITY: " + bitfield.cardinality());
-        // System.out.println("NUM PIECES: " + numPieces);
-        return bitfield.cardinality() == numPieces; // Check if all pieces are received
+    private BitSet copyBitfield() {
+        return pieceStates.copyHave();
     }
 
-    private void assembleFile() throws IOException {
-        System.out.println("ATTEMPTING TO ASSEMBLE");
-        String directoryPath = "peer_" + peerID; // Directory name
-        File directory = new File(directoryPath);
-        if (!directory.exists()) {
-            directory.mkdirs(); // Create directory if it doesn't exist
+    // Returns false if the piece was already marked by someone else
+    // One line of this peer's protocol record in log_peer_<id>.log
+    private void logEvent(String message) {
+        if (eventLog != null) {
+            eventLog.event(message);
         }
+    }
+
+    private boolean markPieceReceived(int pieceIndex) {
+        return pieceStates.markHave(pieceIndex);
+    }
 
-        // Construct the path for the assembled file within the directory
-        File assembledFile = new File(directory, fileName);
+    private void assembleFile() throws IOException {
+        Log.info("ATTEMPTING TO ASSEMBLE");
+        Path assembledFile = files.isMultiFile() ? peerDirectory : peerDirectory.resolve(fileName); // Every file of a FileList lives in there
 
-        try (FileOutputStream fos = new FileOutputStream(assembledFile)) {
-            for (int i = 0; i < numPieces; i++) {
-                byte[] piece = filePieces.get(i);
-                if (piece != null) {
-                    fos.write(piece);
-                } else {
-                    System.err.println("Missing piece " + i + ", cannot assemble the file.");
-                    return;
-                }
-            }
+        // The piece store already knows where the pieces live, it only has to get the complete file onto disk
+        long start = System.nanoTime();
+        try {
+            pieceStore.flush();
+        } catch (IOException e) {
+            Log.warn("Failed to write the file to disk", e);
+            return;
         }
-        System.out.println("File assembled successfully in " + assembledFile.getAbsolutePath());
+        syncCheckpoint();
+        Log.info("File assembled successfully in " + assembledFile.toAbsolutePath() + " (" + (System.nanoTime() - start) / 1_000_000 + " ms)");
         hasFile = true; // Set hasFile to true as the file is now assembled successfully
     }
 
     private boolean isInterestedIn(Neighbor neighbor) {
         BitSet neighborPieces = neighbor.getPieces();
         BitSet interestingPieces = (BitSet) neighborPieces.clone();
-        interestingPieces.andNot(bitfield); // Find pieces neighbor has that we don't
+        interestingPieces.andNot(copyBitfield()); // Find pieces neighbor has that we don't
         return !interestingPieces.isEmpty();
     }
 
@@ -562,13 +1381,18 @@ public class peerProcess {
     private void sendChokeMessage(Neighbor neighbor) {
         try {
             neighbor.setChoked(true);
+            peerMetrics.recordChokeSent();
 
             Message chokeMessage = new Message(MessageType.CHOKE);
-            sendMessage(neighbor.getSocket(), chokeMessage);
-            System.out.println("Sent Choke message to peer " + neighbor.getPeerID());
+            sendMessage(neighbor, chokeMessage);
+            // A choked neighbor drops its outstanding requests, answers that are still queued would only be ignored
+            int dropped = neighbor.getOutboundQueue().clearUploads();
+            if (dropped > 0) {
+                Log.debug(() -> "Dropped " + dropped + " queued uploads to choked peer " + neighbor.getPeerID());
+            }
+            Log.debug(() -> "Sent Choke message to peer " + neighbor.getPeerID());
         } catch (IOException e) {
-            System.out.println("Error sending Choke message to peer " + neighbor.getPeerID());
-            e.printStackTrace();
+            Log.warn("Error sending Choke message to peer " + neighbor.getPeerID(), e);
         }
     }
 
@@ -576,196 +1400,311 @@ public class peerProcess {
         try {
             // Set that neighbor locally as unchoked
             neighbor.setChoked(false);
+            peerMetrics.recordUnchokeSent();
 
             Message unchokeMessage = new Message(MessageType.UNCHOKE);
-            sendMessage(neighbor.getSocket(), unchokeMessage);
-            System.out.println("Sent Unchoke message to peer " + neighbor.getPeerID());
+            sendMessage(neighbor, unchokeMessage);
+            Log.debug(() -> "Sent Unchoke message to peer " + neighbor.getPeerID());
         } catch (IOException e) {
-            System.out.println("Error sending Unchoke message to peer " + neighbor.getPeerID());
-            e.printStackTrace();
+            Log.warn("Error sending Unchoke message to peer " + neighbor.getPeerID(), e);
         }
     }
 
     private void sendInterestedMessage(Neighbor neighbor) {
         try {
             Message interestedMessage = new Message(MessageType.INTERESTED);
-            sendMessage(neighbor.getSocket(), interestedMessage);
-            System.out.println("Sent Interested message to peer " + neighbor.getPeerID());
+            sendMessage(neighbor, interestedMessage);
+            Log.debug(() -> "Sent Interested message to peer " + neighbor.getPeerID());
         } catch (IOException e) {
-            System.out.println("Error sending Interested message to peer " + neighbor.getPeerID());
-            e.printStackTrace();
+            Log.warn("Error sending Interested message to peer " + neighbor.getPeerID(), e);
+        }
+    }
+
+    private void sendCancelMessage(Neighbor neighbor, int pieceIndex, int offset, int length) {
+        try {
+            sendMessage(neighbor, Message.createCancelMessage(files, pieceIndex, offset, length));
+            Log.trace(() -> "Sent CANCEL message for piece " + pieceIndex + " offset " + offset + " to peer " + neighbor.getPeerID());
+        } catch (IOException e) {
+            Log.warn("Error sending CANCEL message to peer " + neighbor.getPeerID(), e);
         }
     }
 
     private void sendNotInterestedMessage(Neighbor neighbor) {
         try {
             Message notInterestedMessage = new Message(MessageType.NOT_INTERESTED);
-            sendMessage(neighbor.getSocket(), notInterestedMessage);
-            System.out.println("Sent Not Interested message to peer " + neighbor.getPeerID());
+            sendMessage(neighbor, notInterestedMessage);
+            Log.debug(() -> "Sent Not Interested message to peer " + neighbor.getPeerID());
         } catch (IOException e) {
-            System.out.println("Error sending Not Interested message to peer " + neighbor.getPeerID());
-            e.printStackTrace();
+            Log.warn("Error sending Not Interested message to peer " + neighbor.getPeerID(), e);
         }
     }
 
-    private void sendRequestMessage(Neighbor neighbor, int pieceIndex) throws IOException {
-        if (!neighbor.hasRequestedPiece(pieceIndex)) {
-            // Prepare and send the request message
-            ByteBuffer buffer = ByteBuffer.allocate(4);
-            buffer.putInt(pieceIndex);
-            byte[] payload = buffer.array();
+    // Requests one block of a piece. Whole pieces go out as a plain REQUEST so peers without BlockSize still understand us.
+    private void sendRequestMessage(Neighbor neighbor, PartialPiece partial, int blockIndex) throws IOException {
+        int pieceIndex = partial.getPieceIndex();
+        int offset = partial.blockOffset(blockIndex);
+        int length = partial.blockLength(blockIndex);
+        long blockKey = PartialPiece.blockKey(pieceIndex, offset);
 
-            Message requestMessage = new Message(MessageType.REQUEST, payload);
-            sendMessage(neighbor.getSocket(), requestMessage);
-            System.out.println("Sent REQUEST message for piece " + pieceIndex + " to peer " + neighbor.getPeerID());
-
-            // Mark the piece as requested
-            neighbor.addRequestedPiece(pieceIndex);
+        if (!neighbor.hasRequestedBlock(blockKey)) {
+            // Mark the block as requested before sending, the PIECE may arrive before we get back from sendMessage
+            neighbor.addRequestedBlock(blockKey);
+            neighbor.getRequestWindow().onRequestSent(blockKey);
 
             // Schedule a task to handle request timeout
             ScheduledFuture<?> timeoutTask = scheduledExecutorService.schedule(() -> {
-                System.out.println("Request for piece " + pieceIndex + " to peer " + neighbor.getPeerID() + " timed out.");
-                // Logic to handle timeout, e.g., try requesting from a different neighbor
-                neighbor.removeRequestedPiece(pieceIndex);
-                // Further action can be taken here if the request times out, such as requesting the piece from another peer
+                Log.info("Request for piece " + pieceIndex + " offset " + offset + " to peer " + neighbor.getPeerID() + " timed out.");
+                if (neighbor.removeRequestedBlock(blockKey)) {
+                    neighbor.recordRequestTimeout();
+                    neighbor.getRequestWindow().onRequestDropped(blockKey);
+                    releaseBlock(blockKey); // Let any neighbor fetch it again
+                    redispatchPiece(pieceIndex);
+                }
+                // Frees a slot in the window, use it right away
+                fillRequestWindow(neighbor);
             }, 10, TimeUnit.SECONDS); // Adjust the timeout period according to your needs
 
             // Store the timeout task to potentially cancel it later if the piece is received before the timeout
-            neighbor.addRequestTimeoutTask(pieceIndex, timeoutTask);
+            neighbor.addRequestTimeoutTask(blockKey, timeoutTask);
+
+            // Prepare and send the request message
+            Message requestMessage = partial.isWholePiece() && !useBlocks
+                    ? Message.createRequestMessage(files, pieceIndex)
+                    : Message.createBlockRequestMessage(files, pieceIndex, offset, length);
+            sendMessage(neighbor, requestMessage);
+            Log.trace(() -> "Sent REQUEST message for piece " + pieceIndex + " offset " + offset + " to peer " + neighbor.getPeerID() + " (window " + neighbor.getRequestWindow().getSize() + ")");
         } else {
-            System.out.println("Already requested piece " + pieceIndex + " from peer " + neighbor.getPeerID());
+            Log.trace(() -> "Already requested piece " + pieceIndex + " offset " + offset + " from peer " + neighbor.getPeerID());
         }
     }
 
-    private void sendPieceMessage(Neighbor neighbor, int pieceIndex, byte[] pieceContent) {
-        try {
-            // Initialize a ByteArrayOutputStream to hold the message content
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
+    // Sends a whole piece as PIECE, or part of one as BLOCK.
+    // The upload waits in the neighbor's queue behind control frames, the content is only read once it is its turn.
+    private void sendPieceMessage(Neighbor neighbor, int pieceIndex, int offset, int length, boolean asBlock) {
+        if (!neighbor.getOutboundQueue().addUpload(new PieceUpload(neighbor, pieceStore, files, pieceIndex, offset, length, asBlock, uploadLimiter))) {
+            Log.debug(() -> "Not sending piece " + pieceIndex + " offset " + offset + ", connection to peer " + neighbor.getPeerID() + " is closed");
+        }
+    }
 
-            // Write the piece index followed by the piece content to the ByteArrayOutputStream
-            dos.writeInt(pieceIndex);
-            dos.write(pieceContent);
 
-            // Convert the ByteArrayOutputStream to a byte array, which will be the payload
-            byte[] payload = baos.toByteArray();
+    // Function doesn't take a neighbor param because it needs to send the message to ALL neighbors.
+    // Neighbors that have the piece already don't need to hear about it. Neighbors that understand HAVE_MULTI get
+    // the piece with the next flushHaveBatch, everybody else right away as a plain HAVE.
+    private void sendHaveMessage(int pieceIndex) {
+        // One message for everybody, it is encoded per neighbor into a pooled buffer
+        Message haveMessage = Message.createHaveMessage(files, pieceIndex);
+        boolean batched = false;
 
-            // Create a new PIECE message with the constructed payload
-            Message pieceMessage = new Message(MessageType.PIECE, payload);
+        for (Neighbor neighbor : neighbors.values()) {
+            if (neighbor.hasPiece(pieceIndex)) {
+                continue;
+            }
+            if (haveBatchInterval > 0 && neighbor.supportsHaveMulti()) {
+                batched = true;
+                continue;
+            }
+            try {
+                sendMessage(neighbor, haveMessage);
+                Log.trace(() -> "Broadcasted have for piece " + pieceIndex + " to peer " + neighbor.getPeerID());
+            } catch (IOException e) {
+                Log.warn("Failed to send have message to " + neighbor.getPeerID(), e);
+            }
+        }
 
-            // Send the PIECE message to the specified neighbor
-            sendMessage(neighbor.getSocket(), pieceMessage);
-            System.out.println("Sent PIECE message for piece " + pieceIndex + " to peer " + neighbor.getPeerID());
-        } catch (IOException e) {
-            // Log any IOException that occurs during message creation or sending
-            System.out.println("Error sending PIECE message for piece " + pieceIndex + " to peer " + neighbor.getPeerID());
-            e.printStackTrace();
+        if (batched) {
+            synchronized (pendingHaves) {
+                pendingHaves.set(pieceIndex);
+            }
         }
     }
 
+    // Without a manifest nothing is requested. A swarm where the peers with the file run with PieceHash none never
+    // sends one, so say why the download doesn't move instead of waiting silently.
+    private void warnIfNoManifest() {
+        if (pieceManifest != null || neighbors.isEmpty()) {
+            return;
+        }
+        Log.warn("No MANIFEST from any of " + neighbors.size() + " neighbors yet, nothing is requested until one arrives. "
+                + "Peers with PieceHash none don't send one, PieceHash has to be the same on every peer.");
+    }
 
-    // Function doesn't take a neighbor param because it needs to send the message to ALL neighbors
-    private void sendHaveMessage(int pieceIndex) {
-        // Convert pieceIndex to byte array
-        ByteBuffer buffer = ByteBuffer.allocate(4);
-        buffer.putInt(pieceIndex);
-        byte[] payload = buffer.array();
+    // Sends the pieces completed since the last flush as one HAVE_MULTI per neighbor, minus the ones it already has
+    private void flushHaveBatch() {
+        BitSet batch;
+        synchronized (pendingHaves) {
+            if (pendingHaves.isEmpty()) {
+                return;
+            }
+            batch = (BitSet) pendingHaves.clone();
+            pendingHaves.clear();
+        }
 
-        // Broadcast to all neighbors
-        neighbors.values().forEach(neighbor -> {
+        for (Neighbor neighbor : neighbors.values()) {
+            if (!neighbor.supportsHaveMulti()) {
+                continue; // Got plain HAVEs already
+            }
+            BitSet announce = (BitSet) batch.clone();
+            announce.andNot(neighbor.getPieces());
+            if (announce.isEmpty()) {
+                continue;
+            }
             try {
-                Message haveMessage = new Message(MessageType.HAVE, payload);
-                sendMessage(neighbor.getSocket(), haveMessage);
-                System.out.println("Broadcasted have for piece " + pieceIndex + " to peer " + neighbor.getPeerID());
+                announcePieces(neighbor, announce);
+                Log.trace(() -> "Sent HAVE_MULTI for " + announce.cardinality() + " pieces to peer " + neighbor.getPeerID());
             } catch (IOException e) {
-                System.out.println("Failed to send have message to " + neighbor.getPeerID());
-                e.printStackTrace();
+                Log.warn("Failed to send have message to " + neighbor.getPeerID(), e);
             }
-        });
+        }
     }
 
 
-    private void handlePeerCommunication(Socket peerSocket, int peerID) {
-        new Thread(() -> {
+    // One HAVE_MULTI for several pieces if the neighbor understands it, plain HAVEs otherwise
+    private void announcePieces(Neighbor neighbor, BitSet pieces) throws IOException {
+        if (pieces.cardinality() > 1 && neighbor.supportsHaveMulti()) {
+            sendMessage(neighbor, Message.createHaveMultiMessage(files, pieces));
+            return;
+        }
+        for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+            sendMessage(neighbor, Message.createHaveMessage(files, i));
+        }
+    }
+
+
+    private void handlePeerCommunication(Socket peerSocket, int peerID, BitSet advertised) {
+        // Handshakes are done, from now on only the writer touches the socket's output side
+        Neighbor neighbor = neighbors.get(peerID);
+        connectionExecutor.execute(new NeighborWriter(neighbor, peerSocket.getChannel(), zeroCopy, bufferPool));
+
+        connectionExecutor.execute(() -> {
+            FrameReader reader = new FrameReader(peerSocket.getChannel(), bufferPool, Math.max(64 * 1024, blockLength + PieceUpload.MAX_HEADER_LENGTH));
             try {
                 // Initial setup Handshake was just approved! So send bitfield
-                System.out.println("Sending bitfield, size is " + bitfield.size());
-                sendBitfieldMessage(peerSocket, bitfield, this.numPieces);
+                sendInitialPieces(neighbors.get(peerID), advertised);
+                sendManifest(neighbors.get(peerID));
 
                 // Loop to continuously listen for messages.
                 while (true) {
-                    Message receivedMessage = receiveMessage(peerSocket);
-
-                    switch (receivedMessage.getType()) {
-                        case MessageType.BITFIELD:
-                            // handle bitfield
-                            BitSet senderBitfield = fromByteArray(receivedMessage.getPayload(), numPieces);
-                            System.out.println("Received bitfield length in handlePeerCom: " + senderBitfield.length());
-                            handleBitfieldMessage(peerID, senderBitfield);
-                            break;
-                        case MessageType.CHOKE:
-                            // handle CHOKE
-                            handleChoke(peerID);
-                            break;
-                        case MessageType.UNCHOKE:
-                            // handle UNCHOKE
-                            handleUnchoke(peerID);
-                            break;
-                        case MessageType.INTERESTED:
-                            // handle INTERESTED
-                            handleInterested(peerID);
-                            break;
-                        case MessageType.NOT_INTERESTED:
-                            // handle NOT INTERESTED
-                            handleNotInterested(peerID);
-                            break;
-                        case MessageType.HAVE:
-                            // handle HAVE
-                            // Extract the piece index from the payload of the HAVE message
-                            ByteBuffer wrappedHave = ByteBuffer.wrap(receivedMessage.getPayload());
-                            int havePieceIndex = wrappedHave.getInt();
-                            handleHave(peerID, havePieceIndex);
-                            break;
-                        case MessageType.REQUEST:
-                            // handle REQUEST
-                            ByteBuffer wrapped = ByteBuffer.wrap(receivedMessage.getPayload());
-                            int requestedPieceIndex = wrapped.getInt();
-                            handleRequest(peerID, requestedPieceIndex);
-                            break;
-                        case MessageType.PIECE:
-                            // handle PIECE
-                            ByteBuffer pieceBuffer = ByteBuffer.wrap(receivedMessage.getPayload());
-                            int pieceIndex = pieceBuffer.getInt();
-                            byte[] pieceContent = new byte[pieceBuffer.remaining()];
-                            pieceBuffer.get(pieceContent); // extract the piece content
-
-                            handlePiece(pieceIndex, pieceContent, peerID);
-                            break;
-                    }
+                    dispatchMessage(peerID, reader.next());
                 }
             } catch (IOException e) {
-                System.out.println("Lost connection with peer " + peerID);
+                onConnectionLost(peerID);
+            } catch (RuntimeException e) {
+                // A malformed message (e.g. a payload too short for its type), the connection can't be trusted anymore
+                Log.warn("Dropping peer " + peerID + " after a malformed message", e);
+                onConnectionLost(peerID);
+            } finally {
+                reader.close();
+                try {
+                    peerSocket.close(); // The other side sees the connection end, the writer stops on its closed queue
+                } catch (IOException e) {
+                    Log.warn("Failed to close connection", e);
+                }
             }
-        }).start();
+        });
     }
 
-    public void startServer() {
-        new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(listeningPort)) {
-                System.out.println("Listening for incoming connections on port " + listeningPort);
-                latch.countDown();
+    // Hands a received message to the matching handler. Shared by the blocking reader threads and the NIO engine.
+    void dispatchMessage(int peerID, Message receivedMessage) throws IOException {
+        switch (receivedMessage.getType()) {
+            case MessageType.BITFIELD:
+                // handle bitfield
+                BitSet senderBitfield = fromByteArray(receivedMessage.getPayload(), numPieces);
+                Log.debug(() -> "Received bitfield length in handlePeerCom: " + senderBitfield.length());
+                handleBitfieldMessage(peerID, senderBitfield);
+                break;
+            case MessageType.CHOKE:
+                // handle CHOKE
+                handleChoke(peerID);
+                break;
+            case MessageType.UNCHOKE:
+                // handle UNCHOKE
+                handleUnchoke(peerID);
+                break;
+            case MessageType.INTERESTED:
+                // handle INTERESTED
+                handleInterested(peerID);
+                break;
+            case MessageType.NOT_INTERESTED:
+                // handle NOT INTERESTED
+                handleNotInterested(peerID);
+                break;
+            case MessageType.HAVE:
+                // handle HAVE
+                // Extract the piece index from the payload of the HAVE message
+                ByteBuffer wrappedHave = receivedMessage.getPayloadBuffer();
+                int havePieceIndex = files.getPiece(wrappedHave);
+                handleHave(peerID, havePieceIndex);
+                break;
+            case MessageType.REQUEST:
+                // handle REQUEST
+                ByteBuffer wrapped = receivedMessage.getPayloadBuffer();
+                int requestedPieceIndex = files.getPiece(wrapped);
+                noteFirstRequest(peerID);
+                handleRequest(peerID, requestedPieceIndex);
+                break;
+            case MessageType.PIECE:
+                // handle PIECE
+                // The content stays in the read buffer until it is written into the piece store
+                ByteBuffer pieceBuffer = receivedMessage.getPayloadBuffer();
+                int pieceIndex = files.getPiece(pieceBuffer);
+
+                handlePiece(pieceIndex, pieceBuffer, peerID);
+                break;
+            case MessageType.REQUEST_BLOCK:
+                // handle REQUEST_BLOCK: piece address, offset, length
+                ByteBuffer blockRequest = receivedMessage.getPayloadBuffer();
+                noteFirstRequest(peerID);
+                handleBlockRequest(peerID, files.getPiece(blockRequest), blockRequest.getInt(), blockRequest.getInt());
+                break;
+            case MessageType.BLOCK:
+                // handle BLOCK: piece address, offset, content
+                ByteBuffer blockBuffer = receivedMessage.getPayloadBuffer();
+                int blockPieceIndex = files.getPiece(blockBuffer);
+                int blockOffset = blockBuffer.getInt();
 
+                handleBlock(blockPieceIndex, blockOffset, blockBuffer, peerID);
+                break;
+            case MessageType.CANCEL:
+                // handle CANCEL: piece address, offset, length
+                ByteBuffer cancel = receivedMessage.getPayloadBuffer();
+                handleCancel(peerID, files.getPiece(cancel), cancel.getInt(), cancel.getInt());
+                break;
+            case MessageType.MANIFEST:
+                handleManifest(peerID, receivedMessage.getPayloadBuffer());
+                break;
+            case MessageType.HAVE_MULTI:
+                handleHaveMulti(peerID, receivedMessage.getPayloadBuffer());
+                break;
+        }
+    }
+
+    // Binds the listening socket right away, so the connects to earlier peers only start once we can be reached too
+    public void startServer() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(listeningPort));
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        this.serverChannel = serverChannel;
+        Log.info("Listening for incoming connections on port " + listeningPort);
+
+        new Thread(() -> {
+            try (serverChannel) {
                 while (true) {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("Connection established with peer: " + clientSocket.getInetAddress().getHostAddress());
+                    Socket clientSocket = serverChannel.accept().socket();
+                    Log.debug(() -> "Connection established with peer: " + clientSocket.getInetAddress().getHostAddress());
 
                     // Use a separate thread to handle each connection to prevent blocking server thread
-                    new Thread(() -> handleClientConnection(clientSocket)).start();
+                    connectionExecutor.execute(() -> handleClientConnection(clientSocket));
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                if (!closed) {
+                    Log.warn("Server socket on port " + listeningPort + " failed", e);
+                }
             }
-        }).start();
+        }, "peer-" + peerID + "-accept").start();
     }
 
     // Converting the payload back into a bitset. Taking into account there may be extra 0s at the end.
@@ -779,38 +1718,61 @@ public class peerProcess {
         return bitSet;
     }
 
+    // Logs how long after the connection was set up the neighbor's first request came in
+    private void noteFirstRequest(int peerID) {
+        Neighbor neighbor = neighbors.get(peerID);
+        if (neighbor == null) {
+            return;
+        }
+        long latency = neighbor.markFirstRequest();
+        if (latency >= 0) {
+            Log.info(String.format("First request from peer %d %.1f ms after the connection was set up", peerID, latency / 1e6));
+        }
+    }
+
     private void addNeighbor(int peerID, Socket socket) {
         // Check if the neighbor already exists to avoid duplication
-        if (!neighbors.containsKey(peerID)) {
-            neighbors.put(peerID, new Neighbor(peerID, socket));
-            System.out.println("Neighbor added: " + peerID);
+        Neighbor neighbor = new Neighbor(peerID, socket, bufferPool);
+        neighbor.setRequestWindow(new RequestWindow(minRequestWindow, maxRequestWindow, blockLength));
+        neighbor.setBandwidthBuckets(uploadLimiter.newNeighborBucket(), downloadLimiter.newNeighborBucket());
+        if (neighbors.putIfAbsent(peerID, neighbor) == null) {
+            peerMetrics.onNeighborAdded(neighbor);
+            Log.info("Neighbor added: " + peerID);
         }
     }
 
     private void handleClientConnection(Socket clientSocket) {
+        long openedAt = System.nanoTime();
         try {
-            // First, validate the incoming handshake
-            int connectedPeerID = HandshakeMessage.receiveAndValidateHandshake(clientSocket, allPeers);
-
-            if (connectedPeerID != -1) {
-                System.out.println("Handshake received successfully from " + connectedPeerID);
+            // First, validate the incoming handshake. It has to arrive in time, the read loop isn't affected by the timeout.
+            clientSocket.setSoTimeout(connectPolicy.getHandshakeTimeout());
+            byte[] handshake = HandshakeMessage.receiveAndValidateHandshake(clientSocket, peersByID);
+
+            if (handshake != null) {
+                int connectedPeerID = HandshakeMessage.peerIDOf(handshake);
+                Log.info("Handshake received successfully from " + connectedPeerID);
+                onInboundConnection(connectedPeerID);
                 addNeighbor(connectedPeerID, clientSocket);
+                neighbors.get(connectedPeerID).setFeatures(HandshakeMessage.featuresOf(handshake));
+                neighbors.get(connectedPeerID).setOpenedAt(openedAt);
 
-                // Send a handshake message back to complete the handshake exchange
-                HandshakeMessage.sendHandshake(clientSocket, peerID);
+                // Send a handshake message back to complete the handshake exchange, with CombinedHandshake our BITFIELD goes along
+                BitSet advertised = combinedHandshake ? copyBitfield() : null;
+                HandshakeMessage.sendHandshake(clientSocket, peerID, initialBitfieldMessage(advertised));
+                clientSocket.setSoTimeout(0);
 
                 // After exchanging handshakes, proceed with further communication
-                handlePeerCommunication(clientSocket, connectedPeerID);
+                handlePeerCommunication(clientSocket, connectedPeerID, advertised);
             } else {
-                System.out.println("Invalid handshake received. Closing connection.");
+                Log.warn("Invalid handshake received. Closing connection.");
                 clientSocket.close(); // Close connection if handshake is invalid
             }
         } catch (IOException e) {
-            System.out.println("Error handling client connection: " + e.getMessage());
+            Log.warn("Error handling client connection: " + e.getMessage());
             try {
                 clientSocket.close();
             } catch (IOException ex) {
-                ex.printStackTrace();
+                Log.warn("Failed to close connection", ex);
             }
         }
     }
@@ -820,57 +1782,87 @@ public class peerProcess {
 
     // Function for picking preferred neighbors
     private void evaluatePreferredNeighbors() {
-        System.out.println("Evaluating peers.....");
+        Log.debug(() -> "Evaluating peers.....");
 
-        List<Neighbor> interestedNeighbors = neighbors.values().stream()
-                .filter(Neighbor::isInterested)
-                .collect(Collectors.toList());
-
-        List<Neighbor> selectedNeighbors;
+        // Turn the bytes moved since the last evaluation into per-neighbor rates
+        neighbors.values().forEach(neighbor -> neighbor.updateRates(rateSmoothing));
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            getTransferStats().forEach(stats -> Log.debug(() -> "Transfer " + stats));
+        }
+        if (uploadLimiter.isLimited() || downloadLimiter.isLimited()) {
+            logBandwidth();
+        }
 
-        if (hasFile) {
-            // If peer has complete file, select randomly
-            Collections.shuffle(interestedNeighbors);
-            selectedNeighbors = interestedNeighbors.stream()
-                    .limit(numPreferredNeighbors)
-                    .collect(Collectors.toList());
-        } else {
-            // Select based on download rates (assuming downloadRate is implemented in Neighbor)
-            selectedNeighbors = interestedNeighbors.stream()
-                    .sorted(Comparator.comparing(Neighbor::getPrevDownloadRate).reversed())
-                    .limit(numPreferredNeighbors)
-                    .collect(Collectors.toList());
+        // Tit-for-tat while downloading: the neighbors that sent us the most. With the whole file: the neighbors we
+        // uploaded the most to, they are the ones that can take it fastest.
+        boolean seeding = isDownloadComplete();
+        synchronized (chokeScheduler) { // The optimistic rotation runs on the other scheduler thread
+            Set<Neighbor> previous = chokeScheduler.getPreferred();
+            applyUnchokedSet(chokeScheduler.selectPreferred(neighbors.values(), seeding));
+            Set<Neighbor> preferred = chokeScheduler.getPreferred();
+            if (!preferred.equals(previous)) {
+                logEvent("Peer " + peerID + " has the preferred neighbors " + preferred.stream()
+                        .map(Neighbor::getPeerID).sorted().map(String::valueOf).collect(Collectors.joining(",")) + ".");
+            }
         }
+    }
 
-        // Unchoke selected neighbors
-        selectedNeighbors.forEach(neighbor -> {
-            if (neighbor.isChoked()) {
-                System.out.println("Sending unchoke to neighbor: " + neighbor.getPeerID());
-                sendUnchokeMessage(neighbor);
+    // Unchokes the neighbors in the set and chokes everybody else, one pass over the neighbors
+    private void applyUnchokedSet(Set<Neighbor> unchoked) {
+        for (Neighbor neighbor : neighbors.values()) {
+            if (unchoked.contains(neighbor)) {
+                if (neighbor.isChoked()) {
+                    Log.debug(() -> "Sending unchoke to neighbor: " + neighbor.getPeerID());
+                    sendUnchokeMessage(neighbor);
+                }
+            } else if (!neighbor.isChoked()) {
+                sendChokeMessage(neighbor);
             }
-        });
+        }
+    }
 
-        // Choke all other interested neighbors not selected
-        interestedNeighbors.stream()
-                .filter(neighbor -> !selectedNeighbors.contains(neighbor))
-                .forEach(neighbor -> {
-                    if (!neighbor.isChoked()) {
-                        sendChokeMessage(neighbor);
-                    }
-                });
+    // Achieved against configured rates, to tune NumberOfPreferredNeighbors against the limits
+    private void logBandwidth() {
+        double upload = 0, download = 0, busiestUpload = 0, busiestDownload = 0;
+        for (Neighbor neighbor : neighbors.values()) {
+            upload += neighbor.getUploadRate();
+            download += neighbor.getDownloadRate();
+            busiestUpload = Math.max(busiestUpload, neighbor.getUploadRate());
+            busiestDownload = Math.max(busiestDownload, neighbor.getDownloadRate());
+        }
+        Log.info("Bandwidth: upload " + describeRate(upload, busiestUpload, uploadLimiter)
+                + ", download " + describeRate(download, busiestDownload, downloadLimiter));
     }
 
-    private void selectOptimisticallyUnchokedNeighbor() {
-        // Correctly filter for interested AND choked neighbors
-        List<Neighbor> chokedInterestedNeighbors = neighbors.values().stream()
-                .filter(n -> n.isChoked() && n.isInterested())
+    private static String describeRate(double total, double busiest, BandwidthLimiter limiter) {
+        String description = String.format("%.1f KiB/s", total / 1024);
+        if (limiter.getGlobalRate() > 0) {
+            description += String.format(" of %.1f KiB/s", limiter.getGlobalRate() / 1024.0);
+        }
+        if (limiter.getPerNeighborRate() > 0) {
+            description += String.format(" (busiest neighbor %.1f of %.1f KiB/s)", busiest / 1024, limiter.getPerNeighborRate() / 1024.0);
+        }
+        return description;
+    }
+
+    // Per-neighbor byte counts and smoothed rates, for monitoring
+    public List<TransferStats> getTransferStats() {
+        return neighbors.values().stream()
+                .map(Neighbor::getTransferStats)
+                .sorted(Comparator.comparingInt(stats -> stats.peerID))
                 .collect(Collectors.toList());
+    }
 
-        if (!chokedInterestedNeighbors.isEmpty()) {
-            // Randomly select one neighbor to unchoke optimistically
-            Neighbor optimisticallyUnchokedNeighbor = chokedInterestedNeighbors.get(new Random().nextInt(chokedInterestedNeighbors.size()));
-            sendUnchokeMessage(optimisticallyUnchokedNeighbor);
-            System.out.println("Optimistically unchoked peer " + optimisticallyUnchokedNeighbor.getPeerID());
+    // The optimistic slot moves on, the previous pick is choked again unless it is preferred by now
+    private void selectOptimisticallyUnchokedNeighbor() {
+        synchronized (chokeScheduler) {
+            Neighbor previous = chokeScheduler.getOptimistic();
+            applyUnchokedSet(chokeScheduler.rotateOptimistic(neighbors.values()));
+            Neighbor optimistic = chokeScheduler.getOptimistic();
+            if (optimistic != null && optimistic != previous) {
+                Log.info("Optimistically unchoked peer " + optimistic.getPeerID());
+                logEvent("Peer " + peerID + " has the optimistically unchoked neighbor " + optimistic.getPeerID() + ".");
+            }
         }
     }
 